@@ -0,0 +1,85 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of computing the direction in each mode.  This runs on the 
+ * compass update thread every update.
+ * 
+ * @author theredwagoneer
+ *
+ */
+@State(Scope.Thread)
+public class HeadingBenchmark {
+	
+	/** Mode manager left in North mode */
+	private CompassModeMgr northMgr;
+	
+	/** Mode manager moved to the first saved location */
+	private CompassModeMgr savedMgr;
+	
+	/** Mode manager in nearest location mode with a big location file */
+	private CompassModeMgr nearestMgr;
+	
+	/** Player state to compute from */
+	private final PlayerState player = new PlayerState();
+	
+	/** Ticks so the input changes from call to call */
+	private long tick = 0;
+	
+	@Setup
+	public void setup() throws IOException
+	{
+		northMgr = new CompassModeMgr(LocationFiles.create(5));
+		
+		// North, Nearest Location, Nearest Entity, Nearest Block, Off, then 
+		// the first saved location
+		savedMgr = new CompassModeMgr(LocationFiles.create(5));
+		savedMgr.next();
+		savedMgr.next();
+		savedMgr.next();
+		savedMgr.next();
+		savedMgr.next();
+		
+		// Wait for the tree to be built so only the lookups are measured
+		nearestMgr = new CompassModeMgr(LocationFiles.create(100000));
+		nearestMgr.next();
+		nearestMgr.flush();
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		nearestMgr.close();
+	}
+	
+	@Benchmark
+	public float northMode()
+	{
+		tick++;
+		player.set(tick % 360, 120.25, -48.75, null, tick);
+		return northMgr.computeDirection(player);
+	}
+	
+	@Benchmark
+	public float savedLocationMode()
+	{
+		tick++;
+		player.set(tick % 360, 120.25 + (tick & 0xFF), -48.75, null, tick);
+		return savedMgr.computeDirection(player);
+	}
+	
+	@Benchmark
+	public float nearestLocationMode()
+	{
+		tick++;
+		player.set(tick % 360, 120.25 + (tick & 0xFFFF), -48.75, null, tick);
+		return nearestMgr.computeDirection(player);
+	}
+}
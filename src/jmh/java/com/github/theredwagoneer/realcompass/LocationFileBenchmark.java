@@ -0,0 +1,69 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of loading and saving the location file, and of building the 
+ * messages shown when switching modes and saving.  These run on the game
+ * thread.
+ * 
+ * @author theredwagoneer
+ *
+ */
+@State(Scope.Thread)
+public class LocationFileBenchmark {
+	
+	/** Number of saved locations in the file */
+	@Param({"5", "1000", "100000"})
+	public int entries;
+	
+	/** File that is only ever read */
+	private File loadFile;
+	
+	/** Mode manager used for switching and saving.  It has its own file. */
+	private CompassModeMgr mgr;
+	
+	/** Moves the saved location from call to call */
+	private double offset = 0;
+	
+	@Setup
+	public void setup() throws IOException
+	{
+		loadFile = LocationFiles.create(entries);
+		
+		// North, Nearest Location, Nearest Entity, Nearest Block, Off, then 
+		// the first saved location
+		mgr = new CompassModeMgr(LocationFiles.create(entries));
+		mgr.next();
+		mgr.next();
+		mgr.next();
+		mgr.next();
+		mgr.next();
+	}
+	
+	@Benchmark
+	public CompassModeMgr load()
+	{
+		return new CompassModeMgr(loadFile);
+	}
+	
+	@Benchmark
+	public String saveCurrentLocation()
+	{
+		offset += 0.5;
+		return mgr.saveCurrentLocation(100 + offset, -200 - offset);
+	}
+	
+	@Benchmark
+	public String switchString()
+	{
+		return mgr.next();
+	}
+}
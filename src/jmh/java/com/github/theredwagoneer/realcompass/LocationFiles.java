@@ -0,0 +1,48 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Builds location files for the benchmarks.
+ * 
+ * @author theredwagoneer
+ *
+ */
+final class LocationFiles {
+	
+	private LocationFiles()
+	{
+	}
+	
+	/**
+	 * Write a temporary location file in the same format the mod saves.
+	 * @param entries - Number of saved locations in the file
+	 * @return the file, deleted when the JVM exits
+	 * @throws IOException
+	 */
+	static File create(int entries) throws IOException
+	{
+		File file = File.createTempFile("CompassLocations", ".json");
+		file.deleteOnExit();
+		
+		try (Writer out = new FileWriter(file))
+		{
+			out.write("[\n");
+			for (int i = 0; i < entries; i++)
+			{
+				out.write("  {\n");
+				out.write("    \"xsaved\": " + (i * 37.5 - 5000) + ",\n");
+				out.write("    \"zsaved\": " + (5000 - i * 21.25) + ",\n");
+				out.write("    \"hasSavedLocation\": true,\n");
+				out.write("    \"writeProtect\": false,\n");
+				out.write("    \"locationText\": \"Location " + i + "\"\n");
+				out.write(i + 1 < entries ? "  },\n" : "  }\n");
+			}
+			out.write("]\n");
+		}
+		return file;
+	}
+}
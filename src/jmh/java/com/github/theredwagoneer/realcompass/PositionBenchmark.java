@@ -0,0 +1,48 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of planning which motor position to send the needle to.  This 
+ * runs on the compass update thread every update.
+ * 
+ * @author theredwagoneer
+ *
+ */
+@State(Scope.Thread)
+public class PositionBenchmark {
+	
+	/** Number of precomputed inputs, a power of 2 */
+	private static final int INPUTS = 1024;
+	
+	private final long[] positions = new long[INPUTS];
+	private final double[] velocities = new double[INPUTS];
+	private final long[] targets = new long[INPUTS];
+	private int next = 0;
+	
+	private final MovePlanner planner = new MovePlanner();
+	
+	@Setup
+	public void setup()
+	{
+		Random random = new Random(42);
+		for (int i = 0; i < INPUTS; i++)
+		{
+			positions[i] = random.nextInt(200 * CompassConst.MICROSTEPS_PER_REV) - 100 * CompassConst.MICROSTEPS_PER_REV;
+			velocities[i] = (random.nextDouble() * 2 - 1) * CompassConst.MAX_SPEED_PER_S;
+			targets[i] = (long)((random.nextFloat() * 720 - 360) * CompassConst.MICROSTEPS_PER_DEG);
+		}
+	}
+	
+	@Benchmark
+	public long planMove()
+	{
+		int i = next++ & (INPUTS - 1);
+		return planner.plan(positions[i], velocities[i], targets[i]);
+	}
+}
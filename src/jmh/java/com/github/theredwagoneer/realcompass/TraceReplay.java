@@ -0,0 +1,346 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Plays a trace recorded with -Drealcompass.recordTrace=true back through
+ * the mode manager and the compass, driving simulated TICs, and reports
+ * how well the needles kept up.
+ *
+ * The compass and the simulated TICs run on a made up clock, stepped
+ * along one tick at a time with the USB latency added as each call is
+ * made.  So the replay runs as fast as it can and gives the same result
+ * every time.  Run with:
+ *
+ *   gradlew replayTrace -Ptrace=file [-Plocations=file] [-PfirstTick=n] [-Pticks=n]
+ *
+ * The locations file is copied first, so saves in the trace don't change
+ * it.  Without it, the replay starts with no saved locations and the
+ * messages for those keys won't match.
+ *
+ * Entities and blocks aren't in the trace, so the nearest entity and
+ * nearest block modes have nothing to point to.
+ *
+ * @author theredwagoneer
+ *
+ */
+public class TraceReplay {
+
+	/** Time between client ticks in ns */
+	private static final long TICK_NS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	/** Time between samples of the needle in ns */
+	private static final long SAMPLE_NS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	/** The needle has settled once it is this close to the heading, in degrees */
+	private static final double SETTLE_DEG = 1.0;
+
+	/** Most key messages that don't match to print */
+	private static final int MAX_MISMATCHES_SHOWN = 5;
+
+	/**
+	 * The made up clock.  Only moves when told to.
+	 */
+	private static class ReplayClock implements LongSupplier
+	{
+		private long now = 0;
+
+		public long getAsLong()
+		{
+			return now;
+		}
+
+		/**
+		 * Let time pass
+		 * @param nanos - How long, in ns
+		 */
+		void advance(long nanos)
+		{
+			now += nanos;
+		}
+	}
+
+	/**
+	 * How well one needle kept up
+	 */
+	private static class Tracking
+	{
+		private final Compass compass;
+		private final SimulatedTicDriver driver;
+
+		/** Is the compass turned off, so not counted? */
+		private boolean off = false;
+
+		private double errorSum = 0;
+		private double maxError = 0;
+		private long samples = 0;
+
+		/** Heading at the last sample */
+		private float lastHeading = Float.NaN;
+
+		/** When the heading last changed, in ns */
+		private long changedNanos = 0;
+
+		/** Has the needle got there since the heading last changed? */
+		private boolean settled = true;
+
+		private long settleSum = 0;
+		private long maxSettle = 0;
+		private long settles = 0;
+
+		/** Commands and reads when the replay started */
+		private long startCommands;
+		private long startReads;
+
+		Tracking(Compass compass, SimulatedTicDriver driver)
+		{
+			this.compass = compass;
+			this.driver = driver;
+		}
+
+		void start()
+		{
+			startCommands = driver.getCommandCount();
+			startReads = driver.getReadCount();
+		}
+
+		void sample(long now)
+		{
+			float heading = compass.getHeading();
+			if (off || Float.isNaN(heading))
+			{
+				return;
+			}
+			if (heading != lastHeading)
+			{
+				lastHeading = heading;
+				changedNanos = now;
+				settled = false;
+			}
+
+			double needle = driver.peekPosition() / CompassConst.MICROSTEPS_PER_DEG;
+			double error = Math.abs(wrap(needle - heading));
+			errorSum += error;
+			maxError = Math.max(maxError, error);
+			samples++;
+
+			if (!settled && error < SETTLE_DEG)
+			{
+				long settle = now - changedNanos;
+				settleSum += settle;
+				maxSettle = Math.max(maxSettle, settle);
+				settles++;
+				settled = true;
+			}
+		}
+
+		void report()
+		{
+			System.out.println(compass.getName() + ":");
+			System.out.println(String.format("  Error: mean=%.2fdeg max=%.2fdeg over %d samples",
+					samples == 0 ? 0 : errorSum / samples, maxError, samples));
+			System.out.println(String.format("  Settle: n=%d mean=%.0fms max=%.0fms", settles,
+					settles == 0 ? 0 : settleSum / 1e6 / settles, maxSettle / 1e6));
+			System.out.println(String.format("  USB: %d commands, %d reads",
+					driver.getCommandCount() - startCommands, driver.getReadCount() - startReads));
+			for (String line : compass.getMetrics().summary())
+			{
+				System.out.println("  " + line);
+			}
+		}
+	}
+
+	/**
+	 * @param args - trace file, then optionally the locations file, the
+	 * 			first tick to play and the number of ticks to play
+	 * @throws IOException if the trace can't be read
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 1 || args[0].isEmpty())
+		{
+			System.out.println("Usage: TraceReplay trace [locations] [firstTick] [ticks]");
+			return;
+		}
+		File traceFile = new File(args[0]);
+		long firstTick = (args.length > 2 && !args[2].isEmpty()) ? Long.parseLong(args[2]) : 0;
+		long tickCount = (args.length > 3 && !args[3].isEmpty()) ? Long.parseLong(args[3]) : Long.MAX_VALUE;
+
+		File locations = File.createTempFile("CompassLocations", ".json");
+		if (args.length > 1 && !args[1].isEmpty())
+		{
+			Files.copy(new File(args[1]).toPath(), locations.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		else
+		{
+			locations.delete();
+		}
+
+		try (TraceReader trace = new TraceReader(traceFile))
+		{
+			replay(trace, locations, firstTick, tickCount);
+		}
+		finally
+		{
+			locations.delete();
+		}
+	}
+
+	/**
+	 * Play the trace back and print the report
+	 * @param trace - Trace to play
+	 * @param locations - Copy of the locations file
+	 * @param firstTick - First tick to play.  Keys before it still count.
+	 * @param tickCount - Number of ticks to play
+	 * @throws IOException if the trace can't be read
+	 */
+	private static void replay(TraceReader trace, File locations, long firstTick, long tickCount)
+			throws IOException
+	{
+		ReplayClock clock = new ReplayClock();
+		int compassCount = Math.max(1, trace.getCompassCount());
+		CompassModeMgr modeMgr = new CompassModeMgr(locations, compassCount);
+		CompassScheduler scheduler = new CompassScheduler(clock);
+		scheduler.setPeriodMs(trace.getPeriodMs());
+
+		List<Compass> compasses = new ArrayList<Compass>(compassCount);
+		List<Tracking> needles = new ArrayList<Tracking>(compassCount);
+		for (int i = 0; i < compassCount; i++)
+		{
+			SimulatedTicDriver driver = new SimulatedTicDriver(
+					TimeUnit.MILLISECONDS.toNanos(CompassConst.SIMULATED_LATENCY_MS), clock, clock::advance);
+			Compass compass = new Compass("Compass " + i, modeMgr, i, driver, scheduler);
+			compass.setVelocityTracking(trace.isVelocityTracking());
+			compasses.add(compass);
+			needles.add(new Tracking(compass, driver));
+		}
+		CompassKeys keys = new CompassKeys(modeMgr, compasses, scheduler);
+
+		long tick = 0;
+		long played = 0;
+		int mismatches = 0;
+		double x = 0;
+		double z = 0;
+		long nextSample = clock.getAsLong();
+
+		while (played < tickCount && trace.next())
+		{
+			if (!trace.isTick())
+			{
+				int active = modeMgr.getActiveNeedle();
+				String resp = keys.press(trace.getKey(), x, z);
+				if (trace.getKey() == TraceRecorder.Key.FUNCTION)
+				{
+					needles.get(active).off = modeMgr.isOffMode();
+				}
+				// Locations are saved and built on another thread.  Wait
+				// for them so they are ready at the same point every time.
+				modeMgr.flush();
+				if (!resp.equals(trace.getMessage()))
+				{
+					if (mismatches < MAX_MISMATCHES_SHOWN)
+					{
+						System.out.println("Tick " + tick + ": got \"" + resp + "\", recorded \"" + trace.getMessage() + "\"");
+					}
+					mismatches++;
+				}
+				continue;
+			}
+
+			x = trace.getX();
+			z = trace.getZ();
+			if (tick >= firstTick)
+			{
+				if (played == 0)
+				{
+					for (Tracking needle : needles)
+					{
+						needle.start();
+					}
+				}
+				for (Tracking needle : needles)
+				{
+					needle.compass.publishPlayerState(trace.getYaw(), x, z, null, tick);
+				}
+				keys.tick();
+				nextSample = runTick(scheduler, clock, needles, nextSample);
+				played++;
+			}
+			tick++;
+		}
+
+		System.out.println(String.format("Played %d ticks from tick %d, %d key messages didn't match",
+				played, firstTick, mismatches));
+		for (Tracking needle : needles)
+		{
+			needle.compass.kill();
+			needle.report();
+		}
+		scheduler.kill();
+		modeMgr.close();
+	}
+
+	/**
+	 * Step the clock through one tick, running each update when it is due
+	 * and sampling the needles along the way
+	 * @param scheduler - Runs the updates
+	 * @param clock - The made up clock
+	 * @param needles - Needles to sample
+	 * @param nextSample - When the next sample is due in ns
+	 * @return when the next sample is due after this tick
+	 */
+	private static long runTick(CompassScheduler scheduler, ReplayClock clock, List<Tracking> needles, long nextSample)
+	{
+		long tickEnd = clock.getAsLong() + TICK_NS;
+		while (clock.getAsLong() - tickEnd < 0)
+		{
+			// Updates move the clock on by the time their USB calls take
+			long waitNanos = scheduler.runDue();
+			long now = clock.getAsLong();
+			if (now - nextSample >= 0)
+			{
+				for (Tracking needle : needles)
+				{
+					needle.sample(now);
+				}
+				while (nextSample - now <= 0)
+				{
+					nextSample += SAMPLE_NS;
+				}
+			}
+			long next = Math.min(tickEnd, nextSample);
+			if (waitNanos < next - now)
+			{
+				next = now + Math.max(0, waitNanos);
+			}
+			clock.advance(next - now);
+		}
+		return nextSample;
+	}
+
+	/**
+	 * Wrap an angle into -180 to 180
+	 * @param degrees - angle to wrap
+	 * @return wrapped angle
+	 */
+	private static double wrap(double degrees)
+	{
+		degrees %= 360;
+		if (degrees > 180)
+		{
+			degrees -= 360;
+		}
+		else if (degrees < -180)
+		{
+			degrees += 360;
+		}
+		return degrees;
+	}
+}
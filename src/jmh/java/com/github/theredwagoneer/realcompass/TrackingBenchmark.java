@@ -0,0 +1,161 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How well the needle follows the player turning, driving the simulated
+ * TIC with target positions or with velocity tracking.
+ * 
+ * Each run plays out a scripted turn in real time, one client tick every
+ * 50 ms, and reports how far the needle was from the heading and how many
+ * commands it took.  The time itself isn't interesting.
+ * 
+ * @author theredwagoneer
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class TrackingBenchmark {
+	
+	/** Degrees the player turns each tick while turning */
+	private static final float TURN_DEG_PER_TICK = 3;
+	
+	/** Ticks spent turning each way */
+	private static final int TURN_TICKS = 60;
+	
+	/** Ticks spent still after each turn */
+	private static final int STILL_TICKS = 20;
+	
+	/** Time between client ticks in ms */
+	private static final long TICK_MS = 50;
+	
+	/** Position mode or velocity tracking */
+	@Param({"position", "velocity"})
+	public String control;
+	
+	/**
+	 * Results of one run, reported alongside the time
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Tracking
+	{
+		/** Average distance between the needle and the heading, in degrees */
+		public double meanErrorDeg;
+		
+		/** Worst distance between the needle and the heading, in degrees */
+		public double maxErrorDeg;
+		
+		/** Commands sent to the TIC per degree the heading turned */
+		public double commandsPerDeg;
+		
+		@Setup(Level.Iteration)
+		public void clear()
+		{
+			meanErrorDeg = 0;
+			maxErrorDeg = 0;
+			commandsPerDeg = 0;
+		}
+	}
+	
+	private CompassModeMgr modeMgr;
+	private CompassScheduler scheduler;
+	private SimulatedTicDriver driver;
+	private Compass compass;
+	
+	/** Client tick number, kept going across runs */
+	private long tick = 0;
+	
+	@Setup(Level.Iteration)
+	public void setup() throws IOException, InterruptedException
+	{
+		// Starts in north mode, with the needle at home pointing north
+		modeMgr = new CompassModeMgr(LocationFiles.create(5));
+		scheduler = new CompassScheduler();
+		driver = new SimulatedTicDriver(CompassConst.SIMULATED_LATENCY_MS);
+		compass = new Compass("Compass 0", modeMgr, 0, driver, scheduler);
+		compass.setVelocityTracking("velocity".equals(control));
+		compass.energize();
+		compass.publishPlayerState(180, 0, 0, null, tick++);
+		Thread.sleep(10 * TICK_MS);
+	}
+	
+	@TearDown(Level.Iteration)
+	public void tearDown()
+	{
+		compass.kill();
+		scheduler.kill();
+		modeMgr.close();
+	}
+	
+	@Benchmark
+	public void turnAndStop(Tracking tracking) throws InterruptedException
+	{
+		long commands = driver.getCommandCount();
+		double errorSum = 0;
+		double turned = 0;
+		int samples = 0;
+		float yaw = 180;
+		
+		for (int leg = 0; leg < 2; leg++)
+		{
+			float turn = (leg == 0) ? TURN_DEG_PER_TICK : -TURN_DEG_PER_TICK;
+			for (int i = 0; i < TURN_TICKS + STILL_TICKS; i++)
+			{
+				if (i < TURN_TICKS)
+				{
+					yaw += turn;
+					turned += Math.abs(turn);
+				}
+				compass.publishPlayerState(yaw, 0, 0, null, tick++);
+				Thread.sleep(TICK_MS);
+				
+				double needle = driver.peekPosition() / CompassConst.MICROSTEPS_PER_DEG;
+				double error = Math.abs(wrap(needle - (180 - yaw)));
+				errorSum += error;
+				tracking.maxErrorDeg = Math.max(tracking.maxErrorDeg, error);
+				samples++;
+			}
+		}
+		
+		tracking.meanErrorDeg = errorSum / samples;
+		tracking.commandsPerDeg = (driver.getCommandCount() - commands) / turned;
+	}
+	
+	/**
+	 * Wrap an angle into -180 to 180
+	 * @param degrees - angle to wrap
+	 * @return wrapped angle
+	 */
+	private static double wrap(double degrees)
+	{
+		degrees %= 360;
+		if (degrees > 180)
+		{
+			degrees -= 360;
+		}
+		else if (degrees < -180)
+		{
+			degrees += 360;
+		}
+		return degrees;
+	}
+}
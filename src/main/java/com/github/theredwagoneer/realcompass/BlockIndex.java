@@ -0,0 +1,338 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Blocks of the tracked type that have been found, for finding the
+ * closest one.
+ *
+ * Each block gets a small id, reused once the block is gone, and its
+ * position goes in the same tree the nearest location mode uses.  The ids
+ * are also listed by chunk, so a whole chunk can be dropped when it
+ * unloads.  The tree is rebuilt a step at a time by the owner calling
+ * {@link #rebuildStep()}, so no one call takes long.
+ *
+ * Not thread safe.  Only use it from one thread.
+ *
+ * @author theredwagoneer
+ *
+ */
+class BlockIndex {
+	/** Block positions by id, for the nearest lookup */
+	private final KdTree tree = new KdTree();
+
+	/** Most blocks kept, so a common block can't eat all the memory */
+	private final int maxBlocks;
+
+	/** Block coordinates by id */
+	private int[] xs = new int[64];
+	private int[] ys = new int[64];
+	private int[] zs = new int[64];
+
+	/** Chunk each id is in */
+	private long[] chunkOf = new long[64];
+	
+	/** Is each id in use?  So a freed id can't be freed again. */
+	private boolean[] used = new boolean[64];
+
+	/** Ids that are free to reuse */
+	private int[] freeIds = new int[64];
+	private int freeCount = 0;
+
+	/** Next id never used */
+	private int nextId = 0;
+
+	/** Number of blocks */
+	private int size = 0;
+
+	/** Ids of the blocks in each chunk */
+	private final Map<Long, ChunkBlocks> chunks = new HashMap<Long, ChunkBlocks>();
+
+	/** Counts blocks dropped, so a user holding an id can tell if it may
+	 * have been freed */
+	private int removals = 0;
+
+	/**
+	 * Ids of the blocks in one chunk
+	 */
+	private static class ChunkBlocks
+	{
+		private int[] ids = new int[4];
+		private int count = 0;
+
+		void add(int id)
+		{
+			if (count == ids.length)
+			{
+				int[] bigger = new int[count * 2];
+				System.arraycopy(ids, 0, bigger, 0, count);
+				ids = bigger;
+			}
+			ids[count++] = id;
+		}
+
+		void remove(int id)
+		{
+			for (int i = 0; i < count; i++)
+			{
+				if (ids[i] == id)
+				{
+					ids[i] = ids[--count];
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param maxBlocks - Most blocks to keep
+	 */
+	BlockIndex(int maxBlocks)
+	{
+		this.maxBlocks = maxBlocks;
+	}
+
+	/**
+	 * @return number of blocks
+	 */
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return count of blocks dropped so far
+	 */
+	int getRemovals()
+	{
+		return removals;
+	}
+
+	/**
+	 * @return keys of the chunks that have blocks
+	 */
+	Set<Long> getChunks()
+	{
+		return Collections.unmodifiableSet(chunks.keySet());
+	}
+
+	/**
+	 * Add a block
+	 * @param chunk - Key of the chunk it is in
+	 * @param x - Block x
+	 * @param y - Block y
+	 * @param z - Block z
+	 * @return false if it wasn't added because the index is full
+	 */
+	boolean add(long chunk, int x, int y, int z)
+	{
+		if (size >= maxBlocks)
+		{
+			return false;
+		}
+		int id = allocate();
+		used[id] = true;
+		xs[id] = x;
+		ys[id] = y;
+		zs[id] = z;
+		chunkOf[id] = chunk;
+
+		ChunkBlocks blocks = chunks.get(chunk);
+		if (blocks == null)
+		{
+			blocks = new ChunkBlocks();
+			chunks.put(chunk, blocks);
+		}
+		blocks.add(id);
+
+		// Point to the middle of the block
+		tree.put(id, x + 0.5, z + 0.5);
+		size++;
+		return true;
+	}
+
+	/**
+	 * Drop all the blocks in a chunk
+	 * @param chunk - Key of the chunk
+	 */
+	void removeChunk(long chunk)
+	{
+		ChunkBlocks blocks = chunks.remove(chunk);
+		if (blocks == null)
+		{
+			return;
+		}
+		for (int i = 0; i < blocks.count; i++)
+		{
+			release(blocks.ids[i]);
+		}
+	}
+
+	/**
+	 * Drop one block, such as when it has been broken.  Does nothing if the
+	 * id is already free.
+	 * @param id - Id of the block
+	 */
+	void remove(int id)
+	{
+		if (id < 0 || id >= nextId || !used[id])
+		{
+			return;
+		}
+		ChunkBlocks blocks = chunks.get(chunkOf[id]);
+		if (blocks == null)
+		{
+			return;
+		}
+		blocks.remove(id);
+		if (blocks.count == 0)
+		{
+			chunks.remove(chunkOf[id]);
+		}
+		release(id);
+	}
+
+	/**
+	 * Drop everything
+	 */
+	void clear()
+	{
+		tree.clear();
+		chunks.clear();
+		Arrays.fill(used, false);
+		freeCount = 0;
+		nextId = 0;
+		size = 0;
+		removals++;
+	}
+
+	/**
+	 * Find the closest block, going by x and z only
+	 * @param x - X coordinate to search from
+	 * @param z - Z coordinate to search from
+	 * @return id of the closest block, or -1 if there are none
+	 */
+	int nearest(double x, double z)
+	{
+		return tree.nearest(x, z);
+	}
+
+	/**
+	 * Do a step of rebuilding the tree, if enough blocks have been added
+	 * or dropped to slow lookups down
+	 * @return false if there was nothing to do
+	 */
+	boolean rebuildStep()
+	{
+		if (!tree.isRebuilding())
+		{
+			if (!tree.needsRebuild())
+			{
+				return false;
+			}
+			tree.startRebuild();
+		}
+		tree.rebuildStep(CompassConst.BLOCK_REBUILD_STEP);
+		return true;
+	}
+
+	/**
+	 * Have so many blocks been added since the tree was last rebuilt that
+	 * lookups are slow?  Best to stop adding until the rebuild is done.
+	 * @return true if more blocks are waiting for the rebuild than
+	 * 			{@link CompassConst#BLOCK_PENDING_MAX}
+	 */
+	boolean isBehind()
+	{
+		return tree.getPendingCount() > CompassConst.BLOCK_PENDING_MAX;
+	}
+
+	/**
+	 * @param id - Id of a block
+	 * @return its x
+	 */
+	int getX(int id)
+	{
+		return xs[id];
+	}
+
+	/**
+	 * @param id - Id of a block
+	 * @return its y
+	 */
+	int getY(int id)
+	{
+		return ys[id];
+	}
+
+	/**
+	 * @param id - Id of a block
+	 * @return its z
+	 */
+	int getZ(int id)
+	{
+		return zs[id];
+	}
+
+	/**
+	 * Get an id for a new block, reusing a free one if there is one
+	 * @return the id
+	 */
+	private int allocate()
+	{
+		if (freeCount > 0)
+		{
+			return freeIds[--freeCount];
+		}
+		int id = nextId++;
+		if (id == xs.length)
+		{
+			int length = xs.length * 2;
+			xs = grow(xs, length);
+			ys = grow(ys, length);
+			zs = grow(zs, length);
+			long[] chunkBigger = new long[length];
+			System.arraycopy(chunkOf, 0, chunkBigger, 0, id);
+			chunkOf = chunkBigger;
+			boolean[] usedBigger = new boolean[length];
+			System.arraycopy(used, 0, usedBigger, 0, id);
+			used = usedBigger;
+		}
+		return id;
+	}
+
+	/**
+	 * Take a block out of the tree and free its id
+	 * @param id - Id of the block
+	 */
+	private void release(int id)
+	{
+		tree.remove(id);
+		used[id] = false;
+		if (freeCount == freeIds.length)
+		{
+			freeIds = grow(freeIds, freeCount * 2);
+		}
+		freeIds[freeCount++] = id;
+		size--;
+		removals++;
+	}
+
+	/**
+	 * Copy an array into a longer one
+	 * @param array - Array to copy
+	 * @param length - New length
+	 * @return the longer array
+	 */
+	private static int[] grow(int[] array, int length)
+	{
+		int[] bigger = new int[length];
+		System.arraycopy(array, 0, bigger, 0, array.length);
+		return bigger;
+	}
+}
@@ -0,0 +1,462 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.entity.Entity;
+import net.minecraft.util.ResourceLocation;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.IWorld;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraftforge.registries.ForgeRegistries;
+
+/**
+ * Finds the nearest loaded block of one type for the nearest block mode.
+ *
+ * Loaded chunks are looked through as they come in and dropped as they
+ * unload, so there is never a scan of the whole world.  A chunk section
+ * whose palette doesn't have the block is skipped without looking at its
+ * blocks.  The looking through, and rebuilding the lookup of the blocks
+ * found, is spread over the client ticks, stopping each tick once its
+ * time is up, so flying into new terrain doesn't make the game hitch.
+ * The closest block is only looked up again when one is dropped, a
+ * closer one is found or the player moves.
+ *
+ * If more blocks are found than can be kept, the chunks farthest from
+ * the player make room for closer ones.  Chunks dropped, or that didn't
+ * fit, are looked through again once the player moves to another chunk.
+ *
+ * Nothing is looked through until a compass first uses the mode.  Until
+ * then only the list of loaded chunks is kept.
+ *
+ * Only used from the client tick thread.
+ *
+ * @author theredwagoneer
+ *
+ */
+class BlockTracker {
+	/** Longest spent looking through chunks each tick, in ns */
+	private static final long BUDGET_NS = TimeUnit.MICROSECONDS.toNanos(CompassConst.BLOCK_INDEX_BUDGET_US);
+
+	/** Block to point to, or null if the name wasn't known */
+	private final Block block;
+
+	/** Does a block state match? */
+	private final Predicate<BlockState> matches;
+
+	/** Blocks found so far */
+	private final BlockIndex index = new BlockIndex(CompassConst.BLOCK_INDEX_MAX);
+
+	/** World the chunks are in */
+	private IWorld world = null;
+
+	/** Chunks loaded in the world */
+	private final Set<Long> loaded = new HashSet<Long>();
+
+	/** Loaded chunks waiting to be looked through.  May hold ones that
+	 * have since unloaded, which are skipped. */
+	private final Queue<Long> pending = new ArrayDeque<Long>();
+
+	/** Loaded chunks whose blocks were dropped to make room, or didn't
+	 * fit */
+	private final Set<Long> evicted = new HashSet<Long>();
+
+	/** Chunk the player is in */
+	private int playerChunkX = Integer.MIN_VALUE;
+	private int playerChunkZ = Integer.MIN_VALUE;
+
+	/** Has a compass used the mode yet? */
+	private boolean active = false;
+
+	/** Chunk being looked through, or null */
+	private ChunkSection[] scanSections = null;
+
+	/** Key of the chunk being looked through */
+	private long scanChunk;
+
+	/** Next section of it to look through */
+	private int scanSection;
+
+	/** Block pointed to, or -1 */
+	private int target = -1;
+
+	/** Index removal count when the target was picked */
+	private int targetRemovals = -1;
+
+	/** Where the player was when the target was picked */
+	private double targetFromX;
+	private double targetFromZ;
+
+	/** Square of the distance to the target from there */
+	private double targetDistSq;
+
+	/** Has a block closer than the target been found since? */
+	private boolean closerFound = false;
+
+	/** Ticks since the target was checked to still be there */
+	private int ticksSinceCheck = 0;
+
+	/** Reused for checking the target */
+	private final BlockPos.Mutable checkPos = new BlockPos.Mutable();
+
+	/** Target block last published.  Ids get reused, so the position is
+	 * kept rather than the id. */
+	private boolean publishedFound = false;
+	private int publishedX;
+	private int publishedY;
+	private int publishedZ;
+
+	/**
+	 * Constructor
+	 * @param blockName - Registry name of the block to point to, such as
+	 * 			minecraft:diamond_ore.  Nothing is found if it isn't known.
+	 */
+	BlockTracker(String blockName)
+	{
+		ResourceLocation name = ResourceLocation.tryParse(blockName);
+		Block found = (name == null) ? null : ForgeRegistries.BLOCKS.getValue(name);
+		block = (found == Blocks.AIR) ? null : found;
+		matches = (state -> block != null && state.is(block));
+	}
+
+	/**
+	 * A chunk loaded on the client
+	 * @param chunkWorld - World it is in
+	 * @param pos - Where it is
+	 */
+	void chunkLoaded(IWorld chunkWorld, ChunkPos pos)
+	{
+		if (chunkWorld != world)
+		{
+			reset(chunkWorld);
+		}
+		long key = pos.toLong();
+		loaded.add(key);
+		if (active)
+		{
+			pending.add(key);
+		}
+	}
+
+	/**
+	 * A chunk unloaded on the client
+	 * @param chunkWorld - World it is in
+	 * @param pos - Where it is
+	 */
+	void chunkUnloaded(IWorld chunkWorld, ChunkPos pos)
+	{
+		if (chunkWorld != world)
+		{
+			return;
+		}
+		long key = pos.toLong();
+		loaded.remove(key);
+		evicted.remove(key);
+		index.removeChunk(key);
+		if (scanSections != null && scanChunk == key)
+		{
+			scanSections = null;
+		}
+	}
+
+	/**
+	 * Look through chunks until this tick's time is up, then publish the
+	 * closest block.
+	 * @param player - The player
+	 * @param level - The world the player is in
+	 * @param out - Where to publish the target
+	 * @return true if what was published changed, so the compass should
+	 * 			point again
+	 */
+	boolean tick(Entity player, World level, TargetHolder out)
+	{
+		if (level != world)
+		{
+			// Only happens before the world's chunks have loaded
+			return false;
+		}
+		if (!active)
+		{
+			active = true;
+			queueLoaded(player);
+		}
+
+		int chunkX = (int)Math.floor(player.getX()) >> 4;
+		int chunkZ = (int)Math.floor(player.getZ()) >> 4;
+		if (chunkX != playerChunkX || chunkZ != playerChunkZ)
+		{
+			playerChunkX = chunkX;
+			playerChunkZ = chunkZ;
+			pending.addAll(evicted);
+			evicted.clear();
+		}
+
+		long deadline = System.nanoTime() + BUDGET_NS;
+		while (System.nanoTime() - deadline < 0)
+		{
+			// Rebuilding the lookup shares the time with looking through
+			// chunks, unless so much has been found since the last one
+			// that looking up the closest would be slow
+			boolean rebuilding = index.rebuildStep();
+			if (rebuilding && index.isBehind())
+			{
+				continue;
+			}
+			if (scanSections == null && !nextChunk(level))
+			{
+				if (!rebuilding)
+				{
+					break;
+				}
+				continue;
+			}
+			scanNextSection();
+		}
+
+		// A dropped block may have freed the target's id, so only check
+		// it while none have been.  Otherwise it is picked again below.
+		ticksSinceCheck++;
+		if (target >= 0 && targetRemovals == index.getRemovals()
+				&& ticksSinceCheck >= CompassConst.BLOCK_RECHECK_TICKS)
+		{
+			ticksSinceCheck = 0;
+			checkPos.set(index.getX(target), index.getY(target), index.getZ(target));
+			if (!matches.test(level.getBlockState(checkPos)))
+			{
+				// Broken since it was found
+				index.remove(target);
+				target = -1;
+			}
+		}
+
+		double dx = player.getX() - targetFromX;
+		double dz = player.getZ() - targetFromZ;
+		if (target < 0 || closerFound || targetRemovals != index.getRemovals()
+				|| dx * dx + dz * dz > CompassConst.BLOCK_MOVE_DEADBAND * CompassConst.BLOCK_MOVE_DEADBAND)
+		{
+			target = index.nearest(player.getX(), player.getZ());
+			targetRemovals = index.getRemovals();
+			targetFromX = player.getX();
+			targetFromZ = player.getZ();
+			closerFound = false;
+			if (target >= 0)
+			{
+				targetDistSq = distSqFromTarget(index.getX(target), index.getZ(target));
+			}
+		}
+
+		if (target < 0)
+		{
+			if (publishedFound)
+			{
+				publishedFound = false;
+				out.publish(false, 0, 0);
+				return true;
+			}
+			return false;
+		}
+		int x = index.getX(target);
+		int y = index.getY(target);
+		int z = index.getZ(target);
+		if (publishedFound && publishedX == x && publishedY == y && publishedZ == z)
+		{
+			return false;
+		}
+		publishedFound = true;
+		publishedX = x;
+		publishedY = y;
+		publishedZ = z;
+		out.publish(true, x + 0.5, z + 0.5);
+		return true;
+	}
+
+	/**
+	 * @return number of blocks found
+	 */
+	int getFoundCount()
+	{
+		return index.size();
+	}
+
+	/**
+	 * @return number of chunks waiting to be looked through
+	 */
+	int getPendingCount()
+	{
+		return pending.size() + (scanSections == null ? 0 : 1);
+	}
+
+	/**
+	 * Start over for a new world
+	 * @param newWorld - The new world
+	 */
+	private void reset(IWorld newWorld)
+	{
+		world = newWorld;
+		loaded.clear();
+		pending.clear();
+		evicted.clear();
+		index.clear();
+		scanSections = null;
+		target = -1;
+	}
+
+	/**
+	 * Queue all the loaded chunks, closest to the player first
+	 * @param player - The player
+	 */
+	private void queueLoaded(Entity player)
+	{
+		int px = (int)Math.floor(player.getX()) >> 4;
+		int pz = (int)Math.floor(player.getZ()) >> 4;
+		List<Long> keys = new ArrayList<Long>(loaded);
+		keys.sort((a, b) -> Integer.compare(chunkDistance(a, px, pz), chunkDistance(b, px, pz)));
+		pending.addAll(keys);
+	}
+
+	/**
+	 * Distance in chunks from one chunk to another, the larger of x and z
+	 * @param key - Key of the chunk
+	 * @param x - Chunk x of the other
+	 * @param z - Chunk z of the other
+	 * @return distance in chunks
+	 */
+	private static int chunkDistance(long key, int x, int z)
+	{
+		return Math.max(Math.abs(ChunkPos.getX(key) - x), Math.abs(ChunkPos.getZ(key) - z));
+	}
+
+	/**
+	 * Start looking through the next loaded chunk in the queue
+	 * @param level - The world the player is in
+	 * @return false if there are none left
+	 */
+	private boolean nextChunk(World level)
+	{
+		Long key;
+		while ((key = pending.poll()) != null)
+		{
+			if (!loaded.contains(key))
+			{
+				continue;
+			}
+			Chunk chunk = level.getChunkSource().getChunk(ChunkPos.getX(key), ChunkPos.getZ(key), false);
+			if (chunk == null)
+			{
+				continue;
+			}
+			// It may have been looked through before, if it was queued twice
+			index.removeChunk(key);
+			scanChunk = key;
+			scanSections = chunk.getSections();
+			scanSection = 0;
+			if (scanSections.length > 0)
+			{
+				return true;
+			}
+			scanSections = null;
+		}
+		return false;
+	}
+
+	/**
+	 * Square of the distance from where the target was picked to the 
+	 * middle of a block
+	 * @param x - Block x
+	 * @param z - Block z
+	 * @return distance squared
+	 */
+	private double distSqFromTarget(int x, int z)
+	{
+		double dx = x + 0.5 - targetFromX;
+		double dz = z + 0.5 - targetFromZ;
+		return dx * dx + dz * dz;
+	}
+
+	/**
+	 * The index is full.  Drop the chunk farthest from the player to make
+	 * room, as long as it is farther than the one being looked through.
+	 * @return false if none are
+	 */
+	private boolean makeRoom()
+	{
+		int farthestDistance = chunkDistance(scanChunk, playerChunkX, playerChunkZ);
+		Long farthest = null;
+		for (Long key : index.getChunks())
+		{
+			int d = chunkDistance(key, playerChunkX, playerChunkZ);
+			if (d > farthestDistance)
+			{
+				farthest = key;
+				farthestDistance = d;
+			}
+		}
+		if (farthest == null)
+		{
+			return false;
+		}
+		index.removeChunk(farthest);
+		evicted.add(farthest);
+		return true;
+	}
+
+	/**
+	 * Look through one section of the chunk, unless its palette shows the
+	 * block isn't there
+	 */
+	private void scanNextSection()
+	{
+		ChunkSection section = scanSections[scanSection];
+		if (!ChunkSection.isEmpty(section) && section.maybeHas(matches))
+		{
+			int baseX = ChunkPos.getX(scanChunk) << 4;
+			int baseY = section.bottomBlockY();
+			int baseZ = ChunkPos.getZ(scanChunk) << 4;
+			for (int y = 0; y < 16; y++)
+			{
+				for (int z = 0; z < 16; z++)
+				{
+					for (int x = 0; x < 16; x++)
+					{
+						if (!matches.test(section.getBlockState(x, y, z)))
+						{
+							continue;
+						}
+						int bx = baseX + x;
+						int bz = baseZ + z;
+						if (!index.add(scanChunk, bx, baseY + y, bz) 
+								&& !(makeRoom() && index.add(scanChunk, bx, baseY + y, bz)))
+						{
+							// Everything kept is at least as close.  The
+							// rest of the chunk won't fit either.
+							evicted.add(scanChunk);
+							scanSections = null;
+							return;
+						}
+						if (target >= 0 && distSqFromTarget(bx, bz) < targetDistSq)
+						{
+							closerFound = true;
+						}
+					}
+				}
+			}
+		}
+		scanSection++;
+		if (scanSection >= scanSections.length)
+		{
+			scanSections = null;
+		}
+	}
+}
@@ -1,123 +1,526 @@
 package com.github.theredwagoneer.realcompass;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
 import javax.usb.UsbDisconnectedException;
 import javax.usb.UsbException;
 
-import com.github.theredwagoneer.javatic.TicCmd;
-import com.github.theredwagoneer.javatic.TicInterface;
-import com.github.theredwagoneer.javatic.TicVar;
+import com.github.theredwagoneer.javatic.TicSet;
 
-import net.minecraft.client.Minecraft;
+import net.minecraft.util.RegistryKey;
+import net.minecraft.world.World;
 
 /**
  * Controls the actual interaction between the game and the compass hardware
  * 
- * We send commands to the compass HW on a periodic basis.
+ * We send commands to the compass HW when the heading changes, but no
+ * faster than the minimum update period.  The updates are run by the 
+ * {@link CompassScheduler}, which may be looking after other compasses too.
  * 
  * @author theredwagoneer
  *
  */
 class Compass {
-	/** Client Minecraft instance */
-    private static final Minecraft MC = Minecraft.getInstance();
+    /** USB timings and error counts */
+    private final CompassMetrics metrics;
     
-    /** Interface to the TIC */
-    private final TicInterface tic = new TicInterface();
+    /** Interface to the motor controller */
+    private final IMotorDriver motor;
     
     /** Link to the compass mode */
     private final CompassModeMgr COMPASS_MODE;
     
-    /** Home compass on next update */
-    private boolean setHomeFlag = false;
-
-    /** Denergize compass on next update */
-    private boolean deenergizeFlag = false;
+    /** Which of the mode manager's compasses this is */
+    private final int needle;
     
-    /** Energize compass on next update */
-    private boolean energizeFlag = false;
+    /** Commands from the keys that have to reach the TIC in order */
+    private enum ControlCommand { ENERGIZE, DEENERGIZE, HOME };
     
-    /** Exit the update thread */
+    /** Control commands waiting for the next update, oldest first */
+    private final Queue<ControlCommand> commands = new ConcurrentLinkedQueue<ControlCommand>();
     
-    private boolean killTheUpdate = false;
+    /** Recompute the direction on next update even if the player didn't move */
+    private volatile boolean refreshFlag = false;
     
-    /**
-     * Extends thread class to give us a periodic task to update the 
-     * compass.
+    /** The thing pointed to moved, so recompute the direction on next update */
+    private volatile boolean retargetFlag = false;
+    
+    /** Model of the motor so we don't have to ask the TIC where it is every update */
+    private final MotorModel model = new MotorModel();
+    
+    /** Number of updates since the model was last synced with the TIC */
+    private int cyclesSinceSync = 0;
+    
+    /** Latest player state from the client tick, waiting for the update thread */
+    private final PlayerStateHolder playerState = new PlayerStateHolder();
+    
+    /** Update thread's copy of the player state */
+    private final PlayerState state = new PlayerState();
+    
+    /** Runs the updates */
+    private final CompassScheduler scheduler;
+    
+    /** Time the last update started in ns */
+    private long lastUpdateNanos = 0;
+    
+    /** Heading the needle was last pointed to, in degrees, for reports */
+    private volatile float heading = Float.NaN;
+    
+    /** When the updates are due */
+    private final UpdateSlots slots;
+    
+    /** Update period the predictor lead was worked out for, in ns */
+    private long leadPeriodNanos = 0;
+    
+    /** Player state changes seen by the last update */
+    private int seenChanges = 0;
+    
+    /** Leads the heading to make up for latency */
+    private final HeadingPredictor predictor = new HeadingPredictor(CompassConst.PREDICTION_MAX_LEAD_DEG, 
+    		CompassConst.UPDATE_PERIOD_MS + CompassConst.PREDICTION_USB_LATENCY_MS);
+    
+    /** Steps of moving the position back near 0 before it overflows */
+    private enum RebaseState { IDLE, STOPPING };
+    
+    /** Where we are in a rebase.  Only touched by the update thread. */
+    private RebaseState rebaseState = RebaseState.IDLE;
+    
+    /** Number of times we've checked if the motor stopped during a rebase */
+    private int rebasePolls = 0;
+    
+    /** Rebase while idle once the position is this far from 0 */
+    private static final long REBASE_IDLE_THRESHOLD = 
+    		(long)CompassConst.REBASE_IDLE_THRESHOLD_REVS * CompassConst.MICROSTEPS_PER_REV;
+    
+    /** Steps of getting the TIC back after it was unplugged */
+    enum ConnectionState { CONNECTED, BACKING_OFF, RECONNECTING };
+    
+    /** Where we are with the TIC connection.  Read by the overlay. */
+    private volatile ConnectionState connection = ConnectionState.CONNECTED;
+    
+    /** Time to wait before the next try to reconnect, in ns */
+    private long backoffNanos = 0;
+    
+    /** Don't try to reconnect before this time, in ns */
+    private long reconnectNanos = 0;
+    
+    /** Last position we knew the motor was at, to put back on reconnect */
+    private long lastKnownPosition = 0;
+    
+    /** Was the last energize command to energize?  Null if there hasn't
+     * been one.  Put back on reconnect.
      */
-    private class CompassUpdateThread extends Thread {
-    	/**
-    	 * Passthrough constructor
-    	 * @param name - name of the thread
-    	 */
-    	CompassUpdateThread( String name )
-    	{
-    		super(name);
-    	}
-    	
-    	/**
-    	 * Loop to update the timer
-    	 */
-    	public void run() {	
-    		while ( killTheUpdate == false )
-    		{
-    			try
-    			{
-    				Thread.sleep(CompassConst.UPDATE_PERIOD_MS);
-		    		if (MC.player != null)
-		    		{
-		    			if (deenergizeFlag == true)
-		        		{
-		        			TicCmd.DEENERGIZE.Send(tic);
-		        			deenergizeFlag = false;
-		        		}
-		        		if (energizeFlag == true)
-		        		{
-		        			TicCmd.ENERGIZE.Send(tic);
-		        			energizeFlag = false;
-		        		}
-		    			if (setHomeFlag == true)
-		    			{
-		    				tic.setHome();
-		    				setHomeFlag = false;
-		    			}
-		    			setDirection( COMPASS_MODE.computeDirection() );
-		    		}
-	    		}
-	    		catch (UsbDisconnectedException | UsbException | InterruptedException e)
-	    		{
-	    			// Swallow.
-	    		}
-    		}
-    		
-        }
-    };
-	
+    private Boolean energized = null;
+    
+    /** First wait before reconnecting, in ns */
+    private static final long MIN_BACKOFF_NS = TimeUnit.MILLISECONDS.toNanos(CompassConst.RECONNECT_MIN_BACKOFF_MS);
+    
+    /** Longest wait between reconnect tries, in ns */
+    private static final long MAX_BACKOFF_NS = TimeUnit.MILLISECONDS.toNanos(CompassConst.RECONNECT_MAX_BACKOFF_MS);
+    
+    /** Name to show in reports */
+    private final String name;
+    
+    /** Drive with velocity commands while the heading turns */
+    private volatile boolean velocityTracking = CompassConst.VELOCITY_TRACKING;
+    
+    /** True while the motor is being driven by velocity.  Update thread only. */
+    private boolean inVelocityMode = false;
+    
+    /** Last velocity sent, in microsteps per second */
+    private double sentVelocity = 0;
+    
+    /** Time the player state last changed, in ns */
+    private long lastMoveNanos = 0;
+    
+    /** How long without a change before the player has stopped turning, in ns */
+    private static final long PLAYER_STOPPED_NS = TimeUnit.MILLISECONDS.toNanos(CompassConst.PLAYER_STOPPED_MS);
+    
+    /** How far ahead velocity tracking aims, in s.  The motor is already
+     * moving at the right rate, so only the USB delay needs covering.
+     */
+    private static final double VELOCITY_LEAD_S = CompassConst.PREDICTION_USB_LATENCY_MS / 1000.0;
+    
+    /** Last read of the TIC's variables */
+    private final MotorSnapshot snapshot = new MotorSnapshot();
+    
+    /** Longest the snapshot is used for, in ns */
+    private static final long SNAPSHOT_MAX_AGE_NS = TimeUnit.MILLISECONDS.toNanos(CompassConst.SNAPSHOT_MAX_AGE_MS);
+    
+    /** Picks the quickest way round to the target */
+    private final MovePlanner planner = new MovePlanner();
+    
+    /** Drops target positions that would not really move the motor */
+    private final TargetCoalescer coalescer = new TargetCoalescer(CompassConst.TARGET_DEADBAND_MICROSTEPS);
+    
+    /** Done once the TIC has its settings.  No updates run before then. */
+    private final CompletableFuture<Void> ready;
+    
     /**
      * Constructor
      * 
-     * Apply the motor settings and start the periodic updates
+     * Start applying the motor settings in the background and start getting
+     * updated once that is done.  Doesn't wait on the USB.
      * 
+     * @param name - Name to show in reports
      * @param modeMgr - The instance of the compass mode manager to link to this
      * 			compass instance
+     * @param needle - Which of the mode manager's compasses this is
+     * @param driver - The motor controller to drive
+     * @param scheduler - Runs the updates
      */
-    public Compass(CompassModeMgr modeMgr)
+    public Compass(String name, CompassModeMgr modeMgr, int needle, IMotorDriver driver, CompassScheduler scheduler)
 	{
+    	this.name = name;
     	COMPASS_MODE = modeMgr;
-    	   	
-		tic.applySettings(CompassConst.MOTOR_SETTINGS);
+    	this.needle = needle;
+    	this.scheduler = scheduler;
+    	metrics = new CompassMetrics(name);
+    	motor = new InstrumentedMotorDriver(driver, metrics, scheduler::now);
+    	slots = new UpdateSlots(scheduler.now());
+    	seenChanges = playerState.getChanges();
+    	
+    	ready = CompletableFuture.runAsync(this::initialize, task -> scheduler.startInit(task, name + " Init"));
+    	ready.whenComplete((result, e) -> scheduler.wake());
+		
+		scheduler.add(this);
+    }
+    
+    /**
+     * Get the TIC ready.  Runs on its own thread.  If the TIC isn't there,
+     * or anything else goes wrong, the update thread takes over trying to
+     * reconnect.
+     */
+    private void initialize()
+    {
+    	try
+    	{
+    		applyChangedSettings();
+    	}
+    	catch (UsbException | RuntimeException e)
+    	{
+    		reportUnexpected(e);
+    		reconnectNanos = scheduler.now();
+    		backoffNanos = MIN_BACKOFF_NS;
+    		connection = ConnectionState.BACKING_OFF;
+    	}
+    }
+    
+    /**
+     * Write the motor settings that the TIC doesn't already have.  Settings
+     * are stored in the TIC's non-volatile memory, so there is no point
+     * wearing it out writing the same ones every time.  With the real TIC
+     * this only saves writes within one run of the game, since javatic 
+     * can't read the settings back.  See {@link TicMotorDriver}.
+     * @throws UsbException 
+     */
+    private void applyChangedSettings() throws UsbException
+    {
+    	Map<TicSet, Long> current = motor.readSettings();
+    	Map<TicSet, Long> changed = new HashMap<>();
+    	for (Map.Entry<TicSet, Long> setting : CompassConst.MOTOR_SETTINGS.entrySet())
+    	{
+    		if (!setting.getValue().equals(current.get(setting.getKey())))
+    		{
+    			changed.put(setting.getKey(), setting.getValue());
+    		}
+    	}
+    	if (!changed.isEmpty())
+    	{
+    		motor.applySettings(changed);
+    	}
+    }
+    
+    /**
+     * Is the TIC ready to use?
+     * @return true once the settings have been applied
+     */
+    public boolean isReady()
+    {
+    	return ready.isDone();
+    }
+    
+    /**
+     * Does the compass have something to do?  An unsynced model means the
+     * last update failed, so go again.
+     * @return true if the player or the target moved, a command is 
+     * 			waiting or the last update failed
+     */
+    boolean wantsUpdate()
+    {
+    	if (!ready.isDone())
+    	{
+    		return false;
+    	}
+    	return !model.isSynced() || seenChanges != playerState.getChanges() || hasCommand() ||
+    		   retargetFlag || predictor.getRate() != 0;
+    }
+    
+    /**
+     * When the next update is due on the fixed rate grid.  While the TIC
+     * is unplugged, this is when to try reconnecting.
+     * @return time in ns
+     */
+    long getNextUpdateNanos()
+    {
+    	return slots.getDeadline();
+    }
+    
+    /**
+     * Update the compass.  Only called from the scheduler thread.
+     * 
+     * All waiting control commands go out first, back to back and in the
+     * order they were given.  Then the target is worked out from the 
+     * newest player state, so only the latest one is ever sent.
+     */
+    void update()
+    {
+		lastUpdateNanos = scheduler.now();
+		long period = scheduler.getPeriodNanos();
+		slots.start(lastUpdateNanos, period, metrics);
+		if (period != leadPeriodNanos)
+		{
+			leadPeriodNanos = period;
+			predictor.setBaseLeadMs(period / 1e6 + CompassConst.PREDICTION_USB_LATENCY_MS);
+		}
+		snapshot.invalidate();
+		int changes = playerState.getChanges();
+		if (changes != seenChanges)
+		{
+			seenChanges = changes;
+			lastMoveNanos = lastUpdateNanos;
+		}
+		retargetFlag = false;
+		if (refreshFlag)
+		{
+			// Heading may jump for reasons other than the player turning
+			refreshFlag = false;
+			predictor.reset();
+		}
+		if (predictor.getRate() != 0 && lastUpdateNanos - lastMoveNanos > PLAYER_STOPPED_NS)
+		{
+			// The player stopped turning, so stop leading the heading and
+			// stop any velocity move.
+			predictor.reset();
+		}
+		
+		if (connection != ConnectionState.CONNECTED)
+		{
+			reconnect();
+			finishUpdate(period);
+			return;
+		}
 		
-		CompassUpdateThread updater = new CompassUpdateThread("Compass Update Thread");
-		updater.setDaemon(true);
-		updater.setPriority(Thread.MIN_PRIORITY);
-		updater.start();
+		try
+		{
+			runCommands();
+    		if (playerState.read(state))
+    		{
+    			float heading = COMPASS_MODE.computeDirection(needle, state);
+    			this.heading = heading;
+    			setDirection( predictor.predict(heading, state.getTick()), heading );
+    		}
+		}
+		catch (UsbDisconnectedException e)
+		{
+			// Stop using the USB until it is plugged back in
+			disconnected();
+		}
+		catch (UsbException e)
+		{
+			// Swallow, but don't trust the model anymore.
+			// The metrics have already counted it.
+			model.invalidate();
+			coalescer.reset();
+		}
+		finishUpdate(period);
+    }
+    
+    /**
+     * The update threw something unexpected.  Don't trust the model, and 
+     * move on to the next slot so it isn't tried again straight away.
+     */
+    void updateFailed()
+    {
+    	model.invalidate();
+    	coalescer.reset();
+    	finishUpdate(scheduler.getPeriodNanos());
+    }
+    
+    /**
+     * Record how long the update took and move on to the next slot
+     * @param period - Update period in ns
+     */
+    private void finishUpdate(long period)
+    {
+    	long now = scheduler.now();
+		metrics.recordUpdate(now - lastUpdateNanos, period);
+		slots.finish(now, period, wantsUpdate(), metrics);
+		if (connection == ConnectionState.BACKING_OFF)
+		{
+			slots.delayUntil(reconnectNanos);
+		}
     }
 
+    /**
+     * Send the waiting control commands to the TIC.  A command is only 
+     * taken off the queue once it has been sent, so if the USB fails the
+     * rest are tried again next update, still in order.
+     * @throws UsbException 
+     */
+    private void runCommands() throws UsbException
+    {
+    	ControlCommand cmd;
+    	while ( (cmd = commands.peek()) != null )
+    	{
+    		if (!isSuperseded(cmd))
+    		{
+	    		switch (cmd)
+	    		{
+	    		case ENERGIZE:
+	    			motor.energize();
+	    			energized = true;
+	    			break;
+	    		case DEENERGIZE:
+	    			motor.deenergize();
+	    			energized = false;
+	    			break;
+	    		case HOME:
+	    			motor.setHome();
+	    			break;
+	    		}
+	    		model.invalidate();
+	    		coalescer.reset();
+    		}
+    		commands.poll();
+    	}
+    }
+    
+    /**
+     * An energize or deenergize at the head of the queue does nothing if
+     * another one comes right after it, such as from pressing Y quickly a
+     * few times.
+     * @param cmd - Command at the head of the queue
+     * @return true if it can be skipped
+     */
+    private boolean isSuperseded(ControlCommand cmd)
+    {
+    	if (cmd == ControlCommand.HOME)
+    	{
+    		return false;
+    	}
+    	// Only the update thread takes things off, so the head is still there
+    	Iterator<ControlCommand> it = commands.iterator();
+    	it.next();
+    	return it.hasNext() && it.next() != ControlCommand.HOME;
+    }
+    
+    /**
+     * The TIC was unplugged.  Remember where it was and wait a bit before
+     * trying to get it back.
+     */
+    private void disconnected()
+    {
+    	if (model.isSynced())
+    	{
+    		lastKnownPosition = model.getPosition(scheduler.now());
+    	}
+    	model.invalidate();
+    	coalescer.reset();
+    	rebaseState = RebaseState.IDLE;
+    	backoffNanos = MIN_BACKOFF_NS;
+    	reconnectNanos = scheduler.now() + backoffNanos;
+    	connection = ConnectionState.BACKING_OFF;
+    }
+    
+    /**
+     * Try to open the TIC again.  If it is back, it has forgotten its
+     * position and energize state, so put those back, along with the
+     * settings, and let the queued commands run after that.  If anything
+     * goes wrong, wait twice as long before the next try.
+     */
+    private void reconnect()
+    {
+    	connection = ConnectionState.RECONNECTING;
+    	try
+    	{
+    		motor.reconnect();
+    		applyChangedSettings();
+    		
+    		// Keep the home where it was.  The needle hasn't moved, so
+    		// call where it is now where it was.
+    		motor.haltAndSetPosition((int)(lastKnownPosition % CompassConst.MICROSTEPS_PER_REV));
+    		if (energized != null)
+    		{
+    			if (energized)
+    			{
+    				motor.energize();
+    			}
+    			else
+    			{
+    				motor.deenergize();
+    			}
+    		}
+    		predictor.reset();
+    		connection = ConnectionState.CONNECTED;
+    	}
+    	catch (UsbException | RuntimeException e)
+    	{
+    		// Whatever it was, don't try again until the backoff is up
+    		reportUnexpected(e);
+    		backoffNanos = Math.min(backoffNanos * 2, MAX_BACKOFF_NS);
+    		reconnectNanos = scheduler.now() + backoffNanos;
+    		connection = ConnectionState.BACKING_OFF;
+    	}
+    }
+    
+    /**
+     * Print anything that went wrong getting the TIC ready other than a
+     * USB error.  Those are expected while it is unplugged, and the 
+     * metrics count them.
+     * @param e - What was thrown
+     */
+    private static void reportUnexpected(Exception e)
+    {
+    	if (!(e instanceof UsbDisconnectedException) && !(e instanceof UsbException))
+    	{
+    		e.printStackTrace();
+    	}
+    }
+    
+    /**
+     * Is there a command waiting for the update thread?
+     * @return true if a command is queued, a rebase needs finishing or the
+     * 			TIC needs reconnecting
+     */
+    private boolean hasCommand()
+    {
+    	return !commands.isEmpty() || refreshFlag || rebaseState != RebaseState.IDLE ||
+    		   connection != ConnectionState.CONNECTED;
+    }
+    
+    /**
+     * Queue a control command and wake the update thread
+     * @param cmd - Command to send
+     */
+    private void sendCommand(ControlCommand cmd)
+    {
+    	commands.add(cmd);
+    	scheduler.wake();
+    }
+    
     /**
      * Home the compass
      */
     public void setHome()
 	{
-		this.setHomeFlag = true;
+		sendCommand(ControlCommand.HOME);
 	}
     
     /**
@@ -125,7 +528,7 @@ class Compass {
      */
     public void energize()
     {
-    	this.energizeFlag = true;
+    	sendCommand(ControlCommand.ENERGIZE);
     }
     
     /**
@@ -133,15 +536,117 @@ class Compass {
      */
     public void deenergize()
     {
-    	this.deenergizeFlag = true;
+    	sendCommand(ControlCommand.DEENERGIZE);
+    }
+    
+    /**
+     * Hand the player state to the update thread.  The thread is only
+     * woken if the player moved, turned or changed dimension.
+     * 
+     * Called once per client tick.
+     * 
+     * @param yaw - Player yaw in degrees
+     * @param x - Player x position
+     * @param z - Player z position
+     * @param dimension - Dimension the player is in
+     * @param tick - Client tick number
+     */
+    public void publishPlayerState(float yaw, double x, double z, RegistryKey<World> dimension, long tick)
+    {
+    	if (playerState.publish(yaw, x, z, dimension, tick))
+    	{
+    		scheduler.wake();
+    	}
+    }
+    
+    /**
+     * Point the compass again even if the player hasn't moved, such as
+     * after a mode change.
+     */
+    public void refresh()
+    {
+    	this.refreshFlag = true;
+    	scheduler.wake();
+    }
+    
+    /**
+     * Point the compass again because what it points to moved.  Unlike
+     * refresh(), the player's turning is still led.
+     */
+    public void retarget()
+    {
+    	this.retargetFlag = true;
+    	scheduler.wake();
+    }
+    
+    /**
+     * Number of target positions sent to the TIC
+     * @return count of sent targets
+     */
+    public long getSentTargets()
+    {
+    	return coalescer.getSentCount();
+    }
+    
+    /**
+     * Number of target positions skipped because they were within the deadband
+     * @return count of suppressed targets
+     */
+    public long getSuppressedTargets()
+    {
+    	return coalescer.getSuppressedCount();
+    }
+    
+    /**
+     * @return name to show in reports
+     */
+    public String getName()
+    {
+    	return name;
+    }
+    
+    /**
+     * @return heading the needle was last pointed to in degrees, or NaN 
+     * 			before the first one
+     */
+    public float getHeading()
+    {
+    	return heading;
+    }
+    
+    /**
+     * Where we are with the TIC connection, for the debug overlay
+     * @return the connection state
+     */
+    public ConnectionState getConnectionState()
+    {
+    	return connection;
     }
     
     /**
-     * Kill the update thread before the object goes out of scope
+     * Last variables read from the TIC, for the debug overlay
+     * @return the snapshot
+     */
+    public MotorSnapshot getSnapshot()
+    {
+    	return snapshot;
+    }
+    
+    /**
+     * USB timings and error counts, for the debug overlay
+     * @return the metrics
+     */
+    public CompassMetrics getMetrics()
+    {
+    	return metrics;
+    }
+    
+    /**
+     * Stop updating the compass before the object goes out of scope
      */
     public void kill()
     {
-    	this.killTheUpdate = true;
+    	scheduler.remove(this);
     }
 	
 	/**
@@ -149,68 +654,217 @@ class Compass {
 	 * 
 	 * The needed direction is set by the compass mode.  However, because the motor
 	 * turns in a circle, it can be at way more than 360 degrees.  This finds the 
-	 * instance of the correct direction that is closest to where we are now.
+	 * instance of the correct direction that is quickest to get to from where
+	 * we are now.
+	 * 
+	 * Where we are now comes from the motor model.  It is only read from the
+	 * TIC every few updates or after something went wrong.
 	 * 
-	 * @param targetDegrees - Direction to point in degrees.
+	 * While the heading turns steadily and velocity tracking is on, the
+	 * motor is instead run at the heading's rate plus a bit to pull in any
+	 * position error.  It goes back to a target position once the heading
+	 * stops.
+	 * 
+	 * @param targetDegrees - Direction to point in degrees, led to make up
+	 * 			for latency.
+	 * @param headingDegrees - Direction to point in degrees, without the lead
 	 */
-	private void setDirection(float targetDegrees)
+	private void setDirection(float targetDegrees, float headingDegrees)
 	{
 		final int POSITION_LIMIT = 2000000000;
 		try
 		{
-			long ticPosition =  TicVar.CURRENT_POSITION.get(tic);
+			long now = scheduler.now();
+			if (!model.isSynced())
+			{
+				// Whatever we sent before may not have stuck
+				inVelocityMode = false;
+			}
+			if (!model.isSynced() || cyclesSinceSync >= CompassConst.POSITION_RESYNC_CYCLES)
+			{
+				model.sync(readPosition(now), now);
+				cyclesSinceSync = 0;
+			}
+			cyclesSinceSync++;
+			
+			long ticPosition = model.getPosition(now);
+			lastKnownPosition = ticPosition;
 			
 			// We reset tic position if we have spun so much we will overflow.
-			// I've never actually tested this, so it may not work.
-			// TODO Test this
+			// This is spread over updates so we never sit waiting on the USB.
+			if ( rebaseState == RebaseState.STOPPING )
+			{
+				continueRebase(now);
+				return;
+			}
 			if ( ticPosition > POSITION_LIMIT || ticPosition < -POSITION_LIMIT )
 			{
-					TicCmd.SET_TARGET_VELOCITY.Send(tic,0);
-					while( 0 != TicVar.CURRENT_VELOCITY.get(tic) )
-					{
-						// Wait until it stops
-					}
-					// Set new position where ever we are mod full rev
-					
-					ticPosition = TicVar.CURRENT_POSITION.get(tic);
-					ticPosition %= CompassConst.MICROSTEPS_PER_REV;
-					TicCmd.HALT_AND_SET_POSITION.Send(tic,(int)ticPosition);
+				inVelocityMode = false;
+				startRebase(now);
+				return;
 			}
 			
-			// Now tell the tic to go to the position.  We need to find the closest
-			// correct position to get sane behavior.		
-			int targetPosition = (int)(targetDegrees * CompassConst.MICROSTEPS_PER_DEG);
-			targetPosition %= CompassConst.MICROSTEPS_PER_REV;
-			
-			// Two possible new positions.  One to the left, one to the right
-			int newPosition1 = ((int)ticPosition / CompassConst.MICROSTEPS_PER_REV) * 
-								CompassConst.MICROSTEPS_PER_REV + targetPosition;
-			int newPosition2;
-			
-			if (ticPosition < newPosition1 ) 
+			double rate = predictor.getRate();
+			if ( velocityTracking && Math.abs(rate) >= CompassConst.VELOCITY_TRACKING_MIN_RATE_DEG )
 			{
-				newPosition2 = newPosition1 - CompassConst.MICROSTEPS_PER_REV;
+				trackVelocity(ticPosition, (float)(headingDegrees + rate * VELOCITY_LEAD_S), rate, now);
+				return;
 			}
-			else
+			if ( inVelocityMode )
 			{
-				newPosition2 = newPosition1 + CompassConst.MICROSTEPS_PER_REV;
+				// Heading stopped.  Make sure the target position goes out.
+				inVelocityMode = false;
+				coalescer.reset();
 			}
-
-		    if ( Math.abs(newPosition1 - ticPosition) < Math.abs(newPosition2 - ticPosition) )
+			
+			// Now tell the tic to go to the position.  We need to find the quickest
+			// correct position to get to, given how the motor is already moving.
+			long targetSteps = (long)(targetDegrees * CompassConst.MICROSTEPS_PER_DEG);
+			long newPosition = planner.plan(ticPosition, model.getVelocity(now), targetSteps);
+		    
+		    // Don't bother the TIC if the target hasn't really moved
+		    if (coalescer.shouldSend(newPosition))
 		    {
-		    	TicCmd.SET_TARGET_POSITION.Send(tic,newPosition1);
+		    	motor.setTargetPosition((int)newPosition);
+		    	model.commandPosition(newPosition, now);
+		    	coalescer.sent(newPosition);
 		    }
-		    else
+		    else if ( Math.abs(ticPosition) > REBASE_IDLE_THRESHOLD && 
+		    		  ticPosition == model.getTarget() &&
+		    		  0 == readVelocity(now) )
 		    {
-		    	TicCmd.SET_TARGET_POSITION.Send(tic,newPosition2);
+		    	// Nothing to do and we have wandered a long way from 0, so
+		    	// rebase now while it is free.
+		    	finishRebase(now);
 		    }
 		}
-		catch (UsbDisconnectedException | UsbException e) 
+		catch (UsbException e) 
 		{
-			// Deliberately swallow
+			// Deliberately swallow, but re-sync next time.
+			// The metrics have already counted it.
+			model.invalidate();
+			coalescer.reset();
 		}
 			
 	}
 	
 	
+	/**
+	 * Run the motor at the heading's rate, plus enough to close the gap to
+	 * where the needle should be.
+	 * @param ticPosition - Where the motor is now in microsteps
+	 * @param targetDegrees - Where the needle should be now in degrees
+	 * @param rate - How fast the heading is turning in degrees per second
+	 * @param now - time of this update in ns
+	 * @throws UsbException 
+	 */
+	private void trackVelocity(long ticPosition, float targetDegrees, double rate, long now) throws UsbException
+	{
+		long targetSteps = (long)(targetDegrees * CompassConst.MICROSTEPS_PER_DEG);
+		long goal = planner.plan(ticPosition, model.getVelocity(now), targetSteps);
+		
+		double velocity = rate * CompassConst.MICROSTEPS_PER_DEG + 
+						  CompassConst.VELOCITY_TRACKING_GAIN * (goal - ticPosition);
+		velocity = Math.max(-CompassConst.MAX_SPEED_PER_S, Math.min(CompassConst.MAX_SPEED_PER_S, velocity));
+		
+		if ( !inVelocityMode || Math.abs(velocity - sentVelocity) > CompassConst.VELOCITY_DEADBAND_PER_S )
+		{
+			// TIC velocities are in microsteps per 10000 s
+			motor.setTargetVelocity((int)Math.round(velocity * 10000));
+			model.commandVelocity(velocity, now);
+			sentVelocity = velocity;
+			inVelocityMode = true;
+		}
+	}
+	
+	/**
+	 * Switch velocity tracking on or off
+	 * @param on - true to drive with velocity while the heading turns
+	 */
+	void setVelocityTracking(boolean on)
+	{
+		velocityTracking = on;
+		scheduler.wake();
+	}
+	
+	/**
+	 * Get the TIC's position.  It is read the first time it is needed in
+	 * an update, and that copy is used for the rest of it.
+	 * @param now - time of this update in ns
+	 * @return position in microsteps
+	 * @throws UsbException 
+	 */
+	private long readPosition(long now) throws UsbException
+	{
+		if (!snapshot.isPositionFresh(now, SNAPSHOT_MAX_AGE_NS))
+		{
+			snapshot.setPosition(motor.getCurrentPosition(), now);
+		}
+		return snapshot.getPosition();
+	}
+	
+	/**
+	 * Get the TIC's velocity.  Only rebasing needs it, so it is read 
+	 * separately from the position and only then.
+	 * @param now - time of this update in ns
+	 * @return velocity in microsteps per 10000 s
+	 * @throws UsbException 
+	 */
+	private long readVelocity(long now) throws UsbException
+	{
+		if (!snapshot.isVelocityFresh(now, SNAPSHOT_MAX_AGE_NS))
+		{
+			snapshot.setVelocity(motor.getCurrentVelocity(), now);
+		}
+		return snapshot.getVelocity();
+	}
+	
+	/**
+	 * Start moving the position back near 0 by asking the motor to stop.
+	 * The model is told too, so it slows down with the motor.
+	 * @param now - time of this update in ns
+	 * @throws UsbException 
+	 */
+	private void startRebase(long now) throws UsbException
+	{
+		motor.setTargetVelocity(0);
+		model.commandVelocity(0, now);
+		sentVelocity = 0;
+		rebaseState = RebaseState.STOPPING;
+		rebasePolls = 0;
+	}
+	
+	/**
+	 * One poll per update to see if the motor has stopped.  If it never
+	 * seems to stop, give up waiting and halt it.
+	 * @param now - time of this update in ns
+	 * @throws UsbException 
+	 */
+	private void continueRebase(long now) throws UsbException
+	{
+		rebasePolls++;
+		if ( 0 == readVelocity(now) || rebasePolls >= CompassConst.REBASE_MAX_POLLS )
+		{
+			finishRebase(now);
+		}
+	}
+	
+	/**
+	 * Set the new position where ever we are mod full rev.  The motor 
+	 * should already be stopped.
+	 * @param now - time of this update in ns
+	 * @throws UsbException 
+	 */
+	private void finishRebase(long now) throws UsbException
+	{
+		long ticPosition = readPosition(now);
+		ticPosition %= CompassConst.MICROSTEPS_PER_REV;
+		motor.haltAndSetPosition((int)ticPosition);
+		snapshot.invalidate();
+		model.invalidate();
+		model.sync(ticPosition, now);
+		coalescer.reset();
+		rebaseState = RebaseState.IDLE;
+	}
+	
 }
\ No newline at end of file
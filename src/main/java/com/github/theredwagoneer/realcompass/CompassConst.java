@@ -21,8 +21,12 @@ class CompassConst {
 	/** Number of steps per revolution of the motor */
 	public static final int FULLSTEPS_PER_REV = 2048;
 	
-	/** How often to update the motor position in ms */
-	public static final int UPDATE_PERIOD_MS = 100;
+	/** Time between motor position updates in ms, to start with.  It can be
+	 * changed while running.  Set with -Drealcompass.updatePeriodMs=n */
+	public static final int UPDATE_PERIOD_MS = Integer.getInteger("realcompass.updatePeriodMs", 100);
+	
+	/** Update periods the period key cycles through, in ms */
+	public static final int[] UPDATE_PERIOD_CHOICES_MS = {10, 20, 25, 50, 100};
 	
 	/** Number of microsteps per revolution */
 	public static final int MICROSTEPS_PER_REV;
@@ -30,6 +34,133 @@ class CompassConst {
 	/** Number of microsteps per degree */
 	public static final float MICROSTEPS_PER_DEG;
 	
+	/** Number of updates between reading the real position from the TIC */
+	public static final int POSITION_RESYNC_CYCLES = 10;
+	
+	/** Targets within this many microsteps of the last one sent are skipped */
+	public static final int TARGET_DEADBAND_MICROSTEPS = 1;
+	
+	/** Most the heading predictor may lead the heading, in degrees.  0 turns it off */
+	public static final float PREDICTION_MAX_LEAD_DEG = 30;
+	
+	/** Typical USB latency for a target command, in ms, for the heading predictor */
+	public static final int PREDICTION_USB_LATENCY_MS = 10;
+	
+	/** Most updates to wait for the motor to stop before rebasing the position */
+	public static final int REBASE_MAX_POLLS = 20;
+	
+	/** Rebase the position while idle once it is this many revolutions from 0 */
+	public static final int REBASE_IDLE_THRESHOLD_REVS = 100;
+	
+	/** First wait before trying to reconnect an unplugged TIC, in ms */
+	public static final int RECONNECT_MIN_BACKOFF_MS = 250;
+	
+	/** Longest wait between tries to reconnect an unplugged TIC, in ms */
+	public static final int RECONNECT_MAX_BACKOFF_MS = 60000;
+	
+	/** Steer the motor with velocity commands while the heading is turning,
+	 * instead of a new target position every update.  Set with 
+	 * -Drealcompass.velocityTracking=true */
+	public static final boolean VELOCITY_TRACKING = Boolean.getBoolean("realcompass.velocityTracking");
+	
+	/** How hard velocity tracking pulls in position error, per second */
+	public static final double VELOCITY_TRACKING_GAIN = 4.0;
+	
+	/** Heading turning slower than this is stationary, in degrees per second */
+	public static final double VELOCITY_TRACKING_MIN_RATE_DEG = 2.0;
+	
+	/** Don't send a new velocity unless it changed by more than this, in 
+	 * microsteps per second */
+	public static final double VELOCITY_DEADBAND_PER_S = 4.0;
+	
+	/** Longest a read of the motor variables is used for, in ms.  They are
+	 * read again each update regardless. */
+	public static final int SNAPSHOT_MAX_AGE_MS = 50;
+	
+	/** The player has stopped turning once the state hasn't changed for this long, in ms */
+	public static final int PLAYER_STOPPED_MS = 100;
+	
+	/** Type of entity the nearest entity mode points to.  Set with
+	 * -Drealcompass.trackedEntity=minecraft:cow */
+	public static final String TRACKED_ENTITY = System.getProperty("realcompass.trackedEntity", "minecraft:player");
+	
+	/** Farthest the nearest entity mode looks, in blocks */
+	public static final double ENTITY_RANGE = 64;
+	
+	/** Square of ENTITY_RANGE */
+	public static final double ENTITY_RANGE_SQ = ENTITY_RANGE * ENTITY_RANGE;
+	
+	/** Client ticks between searches for the nearest entity */
+	public static final int ENTITY_SCAN_TICKS = 5;
+	
+	/** Most entities looked at by the search in one tick, so a crowd can't
+	 * slow the tick.  The rest are looked at on the next ticks. */
+	public static final int ENTITY_SCAN_MAX = 256;
+	
+	/** A new entity has to be this much closer, in distance squared, 
+	 * before the compass switches to it */
+	public static final double ENTITY_SWITCH_RATIO = 0.8;
+	
+	/** The target has to move this many blocks before the compass is
+	 * pointed again */
+	public static final double ENTITY_MOVE_DEADBAND = 0.1;
+	
+	/** Block the nearest block mode points to.  Set with
+	 * -Drealcompass.trackedBlock=minecraft:spawner */
+	public static final String TRACKED_BLOCK = System.getProperty("realcompass.trackedBlock", "minecraft:diamond_ore");
+	
+	/** Longest spent looking through loaded chunks for the block, and 
+	 * rebuilding the lookup of those found, each tick, in us */
+	public static final int BLOCK_INDEX_BUDGET_US = 500;
+	
+	/** Most blocks the nearest block mode keeps track of.  Once full, the
+	 * ones farthest from the player are dropped for closer ones. */
+	public static final int BLOCK_INDEX_MAX = 65536;
+	
+	/** Blocks copied or compared in one step of rebuilding the nearest 
+	 * block lookup.  A step takes tens of us, and comes out of 
+	 * BLOCK_INDEX_BUDGET_US. */
+	public static final int BLOCK_REBUILD_STEP = 4096;
+	
+	/** Most blocks found since the nearest block lookup was last rebuilt.
+	 * Looking up the nearest checks each of them, so finding more waits
+	 * for the rebuild. */
+	public static final int BLOCK_PENDING_MAX = 4096;
+	
+	/** Client ticks between checks that the block pointed to is still there */
+	public static final int BLOCK_RECHECK_TICKS = 20;
+	
+	/** Look for a closer block once the player has moved this many blocks */
+	public static final double BLOCK_MOVE_DEADBAND = 1.0;
+	
+	/** Drive a simulated TIC instead of the real one.  Set with -Drealcompass.simulateMotor=true */
+	public static final boolean SIMULATE_MOTOR = Boolean.getBoolean("realcompass.simulateMotor");
+	
+	/** USB latency of the simulated TIC in ms.  Set with -Drealcompass.simulatedLatencyMs=n */
+	public static final int SIMULATED_LATENCY_MS = Integer.getInteger("realcompass.simulatedLatencyMs", 2);
+	
+	/** Number of simulated compasses to drive alongside the first one.  
+	 * Set with -Drealcompass.extraSimulatedCompasses=n */
+	public static final int EXTRA_SIMULATED_COMPASSES = Integer.getInteger("realcompass.extraSimulatedCompasses", 0);
+	
+	/** Record what the player does each tick to a trace file next to the 
+	 * saved locations, for playing back later.  Set with 
+	 * -Drealcompass.recordTrace=true */
+	public static final boolean RECORD_TRACE = Boolean.getBoolean("realcompass.recordTrace");
+	
+	/** Keep saved locations in a binary journal, with the json file only
+	 * imported and exported.  Set with -Drealcompass.locationJournal=true */
+	public static final boolean USE_LOCATION_JOURNAL = Boolean.getBoolean("realcompass.locationJournal");
+	
+	/** Max speed in microsteps per second, for modeling the motor */
+	public static final double MAX_SPEED_PER_S;
+	
+	/** Max acceleration in microsteps per second^2, for modeling the motor */
+	public static final double MAX_ACCEL_PER_S2;
+	
+	/** Max deceleration in microsteps per second^2, for modeling the motor */
+	public static final double MAX_DECEL_PER_S2;
+	
 	static 
 	{
 		MOTOR_SETTINGS.put(TicSet.CONTROL_MODE,               0L);
@@ -76,6 +207,12 @@ class CompassConst {
 		
 		MICROSTEPS_PER_REV = FULLSTEPS_PER_REV*scale;
 		MICROSTEPS_PER_DEG = (float)MICROSTEPS_PER_REV/360;
+		
+		// TIC speeds are in microsteps per 10000 s and accelerations
+		// in microsteps per 100 s^2
+		MAX_SPEED_PER_S  = MOTOR_SETTINGS.get(TicSet.MAX_SPEED) / 10000.0;
+		MAX_ACCEL_PER_S2 = MOTOR_SETTINGS.get(TicSet.MAX_ACCEL) / 100.0;
+		MAX_DECEL_PER_S2 = MOTOR_SETTINGS.get(TicSet.MAX_DECEL) / 100.0;
 	
 	}
 	
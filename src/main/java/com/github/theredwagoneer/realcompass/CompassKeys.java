@@ -0,0 +1,110 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.util.List;
+
+/**
+ * What each compass key does, apart from putting the message in the chat.
+ *
+ * The client tick and the trace replay both go through here, so a replay
+ * does exactly what the game did with the same keys.
+ *
+ * @author theredwagoneer
+ *
+ */
+class CompassKeys {
+	/** The mode manager the keys change */
+	private final CompassModeMgr modeMgr;
+
+	/** The compasses, in the mode manager's order */
+	private final List<Compass> compasses;
+
+	/** Runs the compass updates */
+	private final CompassScheduler scheduler;
+
+	/**
+	 * Constructor
+	 * @param modeMgr - The mode manager the keys change
+	 * @param compasses - The compasses, in the mode manager's order
+	 * @param scheduler - Runs the compass updates
+	 */
+	CompassKeys(CompassModeMgr modeMgr, List<Compass> compasses, CompassScheduler scheduler)
+	{
+		this.modeMgr = modeMgr;
+		this.compasses = compasses;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Do what a key does
+	 * @param key - Key pressed
+	 * @param x - Player x position, for saving a location
+	 * @param z - Player z position, for saving a location
+	 * @return message to put in the chat
+	 */
+	String press(TraceRecorder.Key key, double x, double z)
+	{
+		String resp;
+		switch (key)
+		{
+		case HOME:
+			activeCompass().setHome();
+			resp = "Compass Homed...";
+			break;
+		case FUNCTION:
+			resp = modeMgr.next();
+			if (modeMgr.isOffMode())
+			{
+				activeCompass().deenergize();
+			}
+			else
+			{
+				activeCompass().energize();
+			}
+			activeCompass().refresh();
+			break;
+		case SELECT:
+			resp = modeMgr.nextNeedle();
+			break;
+		case PERIOD:
+			resp = "Compass Update Period: " + scheduler.nextPeriod() + " ms";
+			break;
+		default:
+			resp = modeMgr.saveCurrentLocation(x, z);
+			for (int i = 0; i < compasses.size(); i++)
+			{
+				if (modeMgr.isAffectedBySave(i))
+				{
+					compasses.get(i).refresh();
+				}
+			}
+			break;
+		}
+		return resp;
+	}
+
+	/**
+	 * Point the compasses in nearest location mode again if the mode's
+	 * locations were built again.  Called once per client tick.
+	 */
+	void tick()
+	{
+		if (modeMgr.takeNearestLocationsChanged())
+		{
+			for (int i = 0; i < compasses.size(); i++)
+			{
+				if (modeMgr.isTrackingNearestLocation(i))
+				{
+					compasses.get(i).retarget();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the compass the keys control
+	 */
+	private Compass activeCompass()
+	{
+		return compasses.get(modeMgr.getActiveNeedle());
+	}
+}
@@ -0,0 +1,217 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts and times what the compass does over the USB.
+ * 
+ * Everything here is lock free so it can be recorded from the update
+ * thread and read from the game thread for the debug overlay.  This is 
+ * how we tell a USB problem apart from a scheduling problem.
+ * 
+ * @author theredwagoneer
+ *
+ */
+class CompassMetrics {
+	/** Kinds of USB operations that are timed */
+	enum Op
+	{
+		POSITION_READ("Position read"),
+		VELOCITY_READ("Velocity read"),
+		SETTINGS_READ("Settings read"),
+		SETTINGS_WRITE("Settings write"),
+		TARGET_WRITE("Target write"),
+		CONTROL("Energize/home");
+		
+		/** Name to show in reports */
+		private final String label;
+		
+		Op(String label)
+		{
+			this.label = label;
+		}
+	}
+	
+	/** Name of the compass, for reports */
+	private final String name;
+	
+	/** Latency of each kind of operation */
+	private final LatencyHistogram[] ops = new LatencyHistogram[Op.values().length];
+	
+	/** Time taken by each whole update */
+	private final LatencyHistogram updates = new LatencyHistogram();
+	
+	/** How late each update started after it was due */
+	private final LatencyHistogram lateness = new LatencyHistogram();
+	
+	/** How far each gap between updates was off the period */
+	private final LatencyHistogram jitter = new LatencyHistogram();
+	
+	/** Number of USB errors */
+	private final AtomicLong usbErrors = new AtomicLong();
+	
+	/** Number of times the TIC was found disconnected */
+	private final AtomicLong disconnects = new AtomicLong();
+	
+	/** Number of updates that took longer than the update period */
+	private final AtomicLong overruns = new AtomicLong();
+	
+	/** Number of update slots skipped because an update ran late */
+	private final AtomicLong skipped = new AtomicLong();
+	
+	/**
+	 * Constructor
+	 * @param name - Name of the compass, for reports
+	 */
+	CompassMetrics(String name)
+	{
+		this.name = name;
+		for (int i = 0; i < ops.length; i++)
+		{
+			ops[i] = new LatencyHistogram();
+		}
+	}
+	
+	/**
+	 * Record how long an operation took
+	 * @param op - Kind of operation
+	 * @param nanos - Time it took in ns
+	 */
+	void record(Op op, long nanos)
+	{
+		ops[op.ordinal()].record(nanos);
+	}
+	
+	/**
+	 * Record how long a whole update took, counting it as an overrun if
+	 * it took longer than the period.
+	 * @param nanos - Time it took in ns
+	 * @param periodNanos - Update period in ns
+	 */
+	void recordUpdate(long nanos, long periodNanos)
+	{
+		updates.record(nanos);
+		if (nanos > periodNanos)
+		{
+			overruns.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Record how late an update started after it was due
+	 * @param nanos - Time it was late by in ns
+	 */
+	void recordLateness(long nanos)
+	{
+		lateness.record(nanos);
+	}
+	
+	/**
+	 * Record how far the gap since the last update was off the period
+	 * @param nanos - Difference in ns
+	 */
+	void recordJitter(long nanos)
+	{
+		jitter.record(nanos);
+	}
+	
+	/**
+	 * Count update slots that were skipped
+	 * @param count - Number of slots
+	 */
+	void skippedSlots(long count)
+	{
+		skipped.addAndGet(count);
+	}
+	
+	/**
+	 * Count a USB error
+	 */
+	void usbError()
+	{
+		usbErrors.incrementAndGet();
+	}
+	
+	/**
+	 * Count a disconnect
+	 */
+	void disconnected()
+	{
+		disconnects.incrementAndGet();
+	}
+	
+	/**
+	 * Latency of one kind of operation
+	 * @param op - Kind of operation
+	 * @return its histogram
+	 */
+	LatencyHistogram get(Op op)
+	{
+		return ops[op.ordinal()];
+	}
+	
+	/**
+	 * @return histogram of whole update times
+	 */
+	LatencyHistogram getUpdates()
+	{
+		return updates;
+	}
+	
+	/**
+	 * Short report, one line per item, for the debug overlay
+	 * @return lines of text
+	 */
+	List<String> summary()
+	{
+		List<String> lines = new ArrayList<String>();
+		lines.add(String.format("%s: %d USB errors, %d disconnects, %d overruns, %d skipped slots", 
+				name, usbErrors.get(), disconnects.get(), overruns.get(), skipped.get()));
+		lines.add(line("Update", updates));
+		lines.add(line("Lateness", lateness));
+		lines.add(line("Jitter", jitter));
+		for (Op op : Op.values())
+		{
+			lines.add(line(op.label, get(op)));
+		}
+		return lines;
+	}
+	
+	/**
+	 * Write the report to a file
+	 * @param file - File to write
+	 */
+	void dump(File file)
+	{
+		try (Writer out = new FileWriter(file))
+		{
+			for (String line : summary())
+			{
+				out.write(line);
+				out.write(System.lineSeparator());
+			}
+		} 
+		catch (IOException e) 
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Format one histogram
+	 * @param label - What was timed
+	 * @param h - Its histogram
+	 * @return line of text
+	 */
+	private static String line(String label, LatencyHistogram h)
+	{
+		return String.format("%s: n=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms", label, h.getCount(),
+				h.getMean() / 1e6, h.getPercentile(0.5) / 1e6, h.getPercentile(0.99) / 1e6, h.getMax() / 1e6);
+	}
+}
@@ -2,23 +2,18 @@ package com.github.theredwagoneer.realcompass;
 
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonIOException;
-import com.google.gson.JsonSyntaxException;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.JsonParseException;
 import com.ibm.icu.text.MessageFormat;
 
-import net.minecraft.client.Minecraft;
-
 // Angle and axis translator for mincraft (From F3 screen)
 // N = 180 = -Z;
 // E = -90 = +X;
@@ -32,16 +27,14 @@ import net.minecraft.client.Minecraft;
  *
  */
 class CompassModeMgr {
-	/** Client Minecraft instance */
-	private static final Minecraft mc = Minecraft.getInstance();
-	
 	/** Gson instance for reading and writing the location file */
 	private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
 	
-	/** Queue of modes.  The leading mode is the current mode.  It gets moved
-	 * to the back when the mode is changed.
-	 */
-	private final Queue<ICompassMode> modeQueue = new ArrayDeque<ICompassMode>();
+	/** Mode selection for each compass attached */
+	private final List<Needle> needles = new ArrayList<Needle>();
+	
+	/** Which compass the keys control.  Client thread only. */
+	private int activeNeedle = 0;
 	
 	/** List of the modes that are saved to the location file. */
 	private ArrayList<SavedLocationMode> modeSaveList;
@@ -49,16 +42,67 @@ class CompassModeMgr {
 	/** Name of the json file to save the locations to */
 	private File saveFileName;
 	
+	/** Writes the location file in the background.  Made on the first 
+	 * save, so a manager that never saves doesn't start a thread. */
+	private volatile LocationSaver saver = null;
+	
+	/** Binary journal the locations are kept in, or null to use only the 
+	 * json file.  Only used by the saver thread after loading.
+	 */
+	private LocationJournal journal = null;
+	
+	/** True if the journal has saves that the json file doesn't */
+	private boolean jsonStale = false;
+	
+	/** Mode that points to whichever saved location is closest */
+	private final NearestLocationMode nearestMode = new NearestLocationMode();
+	
+	/** Where the entity tracker on the client thread publishes its target */
+	private final TargetHolder entityTarget = new TargetHolder();
+	
+	/** Mode that points to the nearest entity of the tracked type */
+	private final NearestEntityMode entityMode = new NearestEntityMode();
+	
+	/** Where the block tracker on the client thread publishes its target */
+	private final TargetHolder blockTarget = new TargetHolder();
+	
+	/** Mode that points to the nearest block of the tracked type */
+	private final NearestBlockMode blockMode = new NearestBlockMode();
+	
+	/** Problem found loading the location file that the player hasn't 
+	 * been told about yet, or null
+	 */
+	private String loadProblem = null;
+	
+	/**
+	 * Constructor for a single compass
+	 * @param filename - Name of file to save locations to
+	 */
+	CompassModeMgr(File filename)
+	{
+		this(filename, 1);
+	}
+	
 	/**
 	 * Constructor
 	 * @param filename - Name of file to save locations to
+	 * @param needleCount - Number of compasses that pick their own mode
 	 */
-	CompassModeMgr(File filename)		
+	CompassModeMgr(File filename, int needleCount)		
 	{ 
 		saveFileName = filename;
-		try {
-			modeSaveList = gson.fromJson(new FileReader(saveFileName),new TypeToken<ArrayList<SavedLocationMode>>(){}.getType());
-		} catch (JsonIOException | JsonSyntaxException | FileNotFoundException e) {
+		
+		if (CompassConst.USE_LOCATION_JOURNAL)
+		{
+			modeSaveList = loadJournal();
+		}
+		else
+		{
+			modeSaveList = loadJson();
+		}
+		
+		if (modeSaveList == null)
+		{
 			// If we can't load it, build it generically
 			modeSaveList = new ArrayList<SavedLocationMode>();
 			modeSaveList.add(new SavedLocationMode("Location 0"));
@@ -66,70 +110,568 @@ class CompassModeMgr {
 			modeSaveList.add(new SavedLocationMode("Location 2"));
 			modeSaveList.add(new SavedLocationMode("Location 3"));
 			modeSaveList.add(new SavedLocationMode("Location 4"));
+			writeJournal(0);
 		}
 		
-		// Add the special ones
-		modeQueue.add(new NorthMode());
-		modeQueue.add(new OffMode());
+		for ( int i = 0; i < modeSaveList.size(); i++ )
+		{
+			modeSaveList.get(i).index = i;
+		}
 		
-		// Add the save Modes to the Queue
-		for ( SavedLocationMode loc : modeSaveList )
+		// The modes are shared.  Each compass just has its own place in 
+		// the cycle.
+		NorthMode north = new NorthMode();
+		OffMode off = new OffMode();
+		for ( int n = 0; n < needleCount; n++ )
 		{
-			modeQueue.add(loc);
+			needles.add(new Needle(north, off));
 		}
 		
 	};
 	
+	/**
+	 * Load the locations from the json file.
+	 * 
+	 * The file is only indexed here.  Each location is read from the file
+	 * the first time it is used, so a big file doesn't hold up the player
+	 * loading.
+	 * @return the locations, or null if they couldn't be loaded
+	 */
+	private ArrayList<SavedLocationMode> loadJson()
+	{
+		if (!saveFileName.exists())
+		{
+			return null;
+		}
+		
+		LocationFileIndex index;
+		try
+		{
+			index = new LocationFileIndex(saveFileName);
+		} 
+		catch (IOException e) 
+		{
+			loadProblem = "Could not read " + saveFileName.getName();
+			return null;
+		}
+		loadProblem = index.getProblem();
+		
+		if (index.size() == 0)
+		{
+			return null;
+		}
+		
+		ArrayList<SavedLocationMode> list = new ArrayList<SavedLocationMode>(index.size());
+		for ( int i = 0; i < index.size(); i++ )
+		{
+			list.add(new SavedLocationMode(index, i));
+		}
+		return list;
+	}
+	
+	/**
+	 * Get any problem loading the location file.  Only returns it once.
+	 * @return message to display, or null if there is nothing to report
+	 */
+	String takeLoadProblem()
+	{
+		String problem = loadProblem;
+		loadProblem = null;
+		return problem;
+	}
+	
+	/**
+	 * Open the journal and load the locations from it.  If the json file
+	 * has changed since the journal last matched it, such as from a hand
+	 * edit, the json file is imported into the journal instead.
+	 * 
+	 * Falls back to the json file if the journal can't be used.
+	 * @return the locations, or null if they couldn't be loaded
+	 */
+	private ArrayList<SavedLocationMode> loadJournal()
+	{
+		File journalFile = new File(saveFileName.getPath().replaceAll("\\.json$", "") + ".journal");
+		try
+		{
+			journal = new LocationJournal(journalFile);
+			
+			if (saveFileName.exists() && saveFileName.lastModified() != journal.getJsonStamp())
+			{
+				modeSaveList = loadJson();
+				if (modeSaveList != null)
+				{
+					writeJournal(saveFileName.lastModified());
+					return modeSaveList;
+				}
+			}
+			
+			List<LocationRecord> records = journal.load();
+			if (records.isEmpty())
+			{
+				return null;
+			}
+			
+			ArrayList<SavedLocationMode> list = new ArrayList<SavedLocationMode>(records.size());
+			for ( int i = 0; i < records.size(); i++ )
+			{
+				LocationRecord record = records.get(i);
+				if (record == null)
+				{
+					list.add(new SavedLocationMode("Location " + i));
+				}
+				else
+				{
+					list.add(new SavedLocationMode(record));
+				}
+			}
+			return list;
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			if (journal != null)
+			{
+				journal.close();
+				journal = null;
+			}
+			return loadJson();
+		}
+	}
+	
+	/**
+	 * Replace the journal contents with the whole location list, if we
+	 * are using a journal.
+	 * @param jsonStamp - Modified time of the json file the list matches
+	 */
+	private void writeJournal(long jsonStamp)
+	{
+		if (journal == null)
+		{
+			return;
+		}
+		
+		// Every location goes in, so read the json file in one pass
+		// rather than opening it for each one
+		loadAll();
+		List<LocationRecord> records = new ArrayList<LocationRecord>(modeSaveList.size());
+		for ( int i = 0; i < modeSaveList.size(); i++ )
+		{
+			records.add(modeSaveList.get(i).toRecord(i));
+		}
+		try
+		{
+			journal.rewrite(records, jsonStamp);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
 	/**
 	 * Move to the next mode.
 	 * @return The message to print when making the switch to the next mode
 	 */
 	String next()
 	{
+		Queue<ICompassMode> modeQueue = needles.get(activeNeedle).modeQueue;
+		String skipped = "";
 		ICompassMode oldMode = modeQueue.remove();
 		modeQueue.add(oldMode);
-		return modeQueue.element().getSwitchString();
+		
+		// Skip over locations that couldn't be read from the file.  North
+		// mode is always in the queue, so this stops.
+		while (modeQueue.element() instanceof SavedLocationMode 
+				&& ((SavedLocationMode)modeQueue.element()).isUnreadable())
+		{
+			SavedLocationMode bad = (SavedLocationMode)modeQueue.remove();
+			modeQueue.add(bad);
+			skipped += MessageFormat.format("Skipped unreadable {0}.  ", bad.saved.locationText);
+		}
+		
+		needles.get(activeNeedle).currentMode = modeQueue.element();
+		if (modeQueue.element() == nearestMode)
+		{
+			nearestMode.want();
+		}
+		return skipped + modeQueue.element().getSwitchString();
+	}
+	
+	/**
+	 * Move the keys on to the next compass.
+	 * @return The message to print when making the switch
+	 */
+	String nextNeedle()
+	{
+		activeNeedle = (activeNeedle + 1) % needles.size();
+		return MessageFormat.format("Controlling Compass {0}: {1}", activeNeedle, 
+				needles.get(activeNeedle).currentMode.getSwitchString());
+	}
+	
+	/**
+	 * @return which compass the keys control
+	 */
+	int getActiveNeedle()
+	{
+		return activeNeedle;
+	}
+	
+	/**
+	 * @return number of compasses that pick their own mode
+	 */
+	int getNeedleCount()
+	{
+		return needles.size();
+	}
+	
+	/**
+	 * @return where the entity tracker should publish its target
+	 */
+	TargetHolder getEntityTarget()
+	{
+		return entityTarget;
+	}
+	
+	/**
+	 * Is any compass pointing to the nearest entity?  If not, the entity
+	 * tracker doesn't need to run.
+	 * @return true if a compass is in the nearest entity mode
+	 */
+	boolean isTrackingEntity()
+	{
+		for (int i = 0; i < needles.size(); i++)
+		{
+			if (isTrackingEntity(i))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Is a compass pointing to the nearest entity?
+	 * @param needle - Which compass
+	 * @return true if it is in the nearest entity mode
+	 */
+	boolean isTrackingEntity(int needle)
+	{
+		return needles.get(needle).currentMode == entityMode;
+	}
+	
+	/**
+	 * Could a save by the active compass have changed where a compass 
+	 * points?  Only the nearest location mode and the location that was
+	 * saved to read it.
+	 * @param needle - Which compass
+	 * @return true if it should point again after a save
+	 */
+	boolean isAffectedBySave(int needle)
+	{
+		ICompassMode mode = needles.get(needle).currentMode;
+		return mode == nearestMode 
+				|| (mode instanceof SavedLocationMode && mode == needles.get(activeNeedle).currentMode);
+	}
+	
+	/**
+	 * Is a compass pointing to the nearest saved location?
+	 * @param needle - Which compass
+	 * @return true if it is in the nearest location mode
+	 */
+	boolean isTrackingNearestLocation(int needle)
+	{
+		return needles.get(needle).currentMode == nearestMode;
+	}
+	
+	/**
+	 * Has the nearest location mode finished building its locations since
+	 * this was last asked?  If so, the compasses in that mode should 
+	 * point again.
+	 * @return true once for each build
+	 */
+	boolean takeNearestLocationsChanged()
+	{
+		return nearestMode.takeChanged();
+	}
+	
+	/**
+	 * @return where the block tracker should publish its target
+	 */
+	TargetHolder getBlockTarget()
+	{
+		return blockTarget;
+	}
+	
+	/**
+	 * Is any compass pointing to the nearest block?  If not, the block
+	 * tracker doesn't need to run.
+	 * @return true if a compass is in the nearest block mode
+	 */
+	boolean isTrackingBlock()
+	{
+		for (int i = 0; i < needles.size(); i++)
+		{
+			if (isTrackingBlock(i))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Is a compass pointing to the nearest block?
+	 * @param needle - Which compass
+	 * @return true if it is in the nearest block mode
+	 */
+	boolean isTrackingBlock(int needle)
+	{
+		return needles.get(needle).currentMode == blockMode;
 	}
 	
 	/**
 	 * Informs if this is the off mode so special action can be taken.
-	 * @return true if it is the off mode
+	 * @return true if the compass the keys control is off
 	 */
 	boolean isOffMode()
 	{
-		return modeQueue.element().isOffMode();
+		return needles.get(activeNeedle).modeQueue.element().isOffMode();
+	}
+	
+	/**
+	 * Computes the direction the first compass should point.
+	 * @param player - Player state to compute from
+	 * @return Direction to point, in degrees.
+	 */
+	float computeDirection(PlayerState player)
+	{
+		return computeDirection(0, player);
 	}
 	
 	/**
-	 * Computes the direction the compass should point
+	 * Computes the direction a compass should point.
+	 * 
+	 * Called from the compass update thread, so it only works from the 
+	 * player state snapshot.
+	 * @param needle - Which compass
+	 * @param player - Player state to compute from
 	 * @return Direction to point, in degrees.
 	 */
-	float computeDirection()
+	float computeDirection(int needle, PlayerState player)
 	{
-		return modeQueue.element().computeDirection();
+		return needles.get(needle).currentMode.computeDirection(player);
 	}
 	
 	/** 
 	 * Saves the current location if it is allowed to be saved in this mode
+	 * @param x - Player x position
+	 * @param z - Player z position
 	 * @return Message to display upon saving.
 	 */
-	String saveCurrentLocation()
+	String saveCurrentLocation(double x, double z)
 	{
-		String retString = modeQueue.element().saveCurrentLocation();
+		ICompassMode mode = needles.get(activeNeedle).modeQueue.element();
+		String retString = mode.saveCurrentLocation(x, z);
 		
-		try {
-			FileWriter out = new FileWriter(saveFileName);
-			String saveString = gson.toJson(modeSaveList);
-			out.write(saveString);
-			out.close();
-			
-		} catch (JsonIOException | IOException e) {
-			e.printStackTrace();
+		if (mode instanceof SavedLocationMode)
+		{
+			nearestMode.locationChanged();
+		}
+		
+		if (journal != null)
+		{
+			// Only the changed location needs writing
+			if (mode instanceof SavedLocationMode)
+			{
+				SavedLocationMode loc = (SavedLocationMode)mode;
+				LocationRecord record = loc.toRecord(loc.index);
+				getSaver().submit(record.getIndex(), () -> appendJournal(record));
+				jsonStale = true;
+			}
+		}
+		else
+		{
+			getSaver().save(this::copySaveList);
 		}
 		
 		return retString;
 	}
 	
+	/**
+	 * Wait until all saves have been written to the file.  When using the
+	 * journal, this also exports the locations to the json file.
+	 */
+	void flush()
+	{
+		if (journal != null && jsonStale)
+		{
+			getSaver().submit(saveFileName, () -> exportJson(copySaveList()));
+			jsonStale = false;
+		}
+		if (saver != null)
+		{
+			saver.flush();
+		}
+	}
+	
+	/**
+	 * Write any outstanding saves and stop saving.  Call before the 
+	 * manager is thrown away.
+	 */
+	void close()
+	{
+		flush();
+		if (saver != null)
+		{
+			saver.close();
+		}
+		if (journal != null)
+		{
+			journal.close();
+		}
+	}
+	
+	/**
+	 * Read every location not used yet from the file, in one pass over
+	 * it.  Much quicker than reading them one at a time when the whole 
+	 * list is needed.  Don't call on the game thread.
+	 */
+	private void loadAll()
+	{
+		LocationFileIndex source = null;
+		for ( SavedLocationMode loc : modeSaveList )
+		{
+			source = loc.pendingSource();
+			if (source != null)
+			{
+				break;
+			}
+		}
+		if (source == null)
+		{
+			return;
+		}
+		
+		LocationRecord[] records;
+		try
+		{
+			records = source.readAll();
+		}
+		catch (IOException e)
+		{
+			// Each one will try on its own when used
+			e.printStackTrace();
+			return;
+		}
+		for ( SavedLocationMode loc : modeSaveList )
+		{
+			if (loc.pendingSource() == source)
+			{
+				loc.fill(records[loc.index]);
+			}
+		}
+	}
+	
+	/**
+	 * @return the saver, started if this is the first save
+	 */
+	private synchronized LocationSaver getSaver()
+	{
+		if (saver == null)
+		{
+			saver = new LocationSaver(gson, saveFileName);
+		}
+		return saver;
+	}
+	
+	/**
+	 * Copy the location list as it is now, to be written while we keep 
+	 * changing it.  Runs in the background, since locations not used yet
+	 * are read from the file.
+	 * @return copy of the list
+	 */
+	private ArrayList<SavedLocation> copySaveList()
+	{
+		loadAll();
+		ArrayList<SavedLocation> copy = new ArrayList<SavedLocation>(modeSaveList.size());
+		for ( SavedLocationMode loc : modeSaveList )
+		{
+			copy.add(loc.snapshot());
+		}
+		return copy;
+	}
+	
+	/**
+	 * Append one location to the journal.  Runs in the background.
+	 * @param record - Location to append
+	 */
+	private void appendJournal(LocationRecord record)
+	{
+		try 
+		{
+			journal.append(record);
+		} 
+		catch (IOException e) 
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Write the locations to the json file and note that the journal 
+	 * matches it.  Runs in the background.
+	 * @param copy - Locations to write
+	 */
+	private void exportJson(ArrayList<SavedLocation> copy)
+	{
+		saver.writeJson(copy);
+		try 
+		{
+			journal.setJsonStamp(saveFileName.lastModified());
+		} 
+		catch (IOException e) 
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Which mode one compass is in
+	 * @author theredwagoneer
+	 *
+	 */
+	private class Needle
+	{
+		/** Queue of modes.  The leading mode is the current mode.  It gets moved
+		 * to the back when the mode is changed.
+		 */
+		private final Queue<ICompassMode> modeQueue = new ArrayDeque<ICompassMode>();
+		
+		/** The leading mode, published for the compass update thread.  The
+		 * queue itself is only touched by the client thread.
+		 */
+		private volatile ICompassMode currentMode;
+		
+		/**
+		 * Constructor.  Starts out pointing north.
+		 * @param north - The north mode
+		 * @param off - The off mode
+		 */
+		Needle(NorthMode north, OffMode off)
+		{
+			// Add the special ones
+			modeQueue.add(north);
+			modeQueue.add(nearestMode);
+			modeQueue.add(entityMode);
+			modeQueue.add(blockMode);
+			modeQueue.add(off);
+			
+			// Add the save Modes to the Queue
+			modeQueue.addAll(modeSaveList);
+			currentMode = modeQueue.element();
+		}
+	}
+	
 	/**
 	 * Interface for the modes
 	 * @author theredwagoneer
@@ -145,9 +687,11 @@ class CompassModeMgr {
 		
 		/**
 		 * Save the current location
+		 * @param x - Player x position
+		 * @param z - Player z position
 		 * @return message to display
 		 */
-		public String saveCurrentLocation();
+		public String saveCurrentLocation(double x, double z);
 		/**
 		 * Get the string that is displayed when we switch to this mode
 		 * @return message to display
@@ -156,9 +700,10 @@ class CompassModeMgr {
 		
 		/** 
 		 * Compute the direction to point the compass
+		 * @param player - Player state to compute from
 		 * @return direction to point the compass in degrees
 		 */
-	    public float computeDirection();
+	    public float computeDirection(PlayerState player);
 	}
 	
 	/**
@@ -172,7 +717,7 @@ class CompassModeMgr {
 		{
 			return true;
 		}
-		public String saveCurrentLocation()
+		public String saveCurrentLocation(double x, double z)
 		{
 			return "Cannot save location while Compass is off";
 		}
@@ -180,7 +725,7 @@ class CompassModeMgr {
 		{
 			return "Compass Off";
 		}
-	    public float computeDirection()
+	    public float computeDirection(PlayerState player)
 	    {
 	    	return (float)0;	
 	    }
@@ -197,7 +742,7 @@ class CompassModeMgr {
 		{
 			return false;
 		}
-		public String saveCurrentLocation()
+		public String saveCurrentLocation(double x, double z)
 		{
 			return "Cannot save location to North Pointing Compass";
 		}
@@ -205,12 +750,291 @@ class CompassModeMgr {
 		{
 			return "Compass Pointing North";
 		}
-	    public float computeDirection()
+	    public float computeDirection(PlayerState player)
+	    {
+	    	return (float)(180 - player.getYaw());	
+	    }
+	}
+	
+	/**
+	 * Compute the direction to point to get to a spot
+	 * @param xTarget - X coordinate of the spot
+	 * @param zTarget - Z coordinate of the spot
+	 * @param player - Player state to compute from
+	 * @return direction to point the compass in degrees
+	 */
+	private static float pointTo(double xTarget, double zTarget, PlayerState player)
+	{
+		double tanTheta;
+		double theta = 0;
+		double deltaZ = zTarget - player.getZ() ;
+		double deltaX = player.getX() - xTarget;
+		
+		if (deltaZ == 0) {
+			// Deal with divide by 0
+			if (deltaX < 0)
+			{
+				if (deltaX > 0)
+				{
+					theta = 90;
+				}
+				else
+				{
+					theta = -90;
+				}
+			}
+		}
+		else
+		{
+			tanTheta = deltaX / deltaZ;
+			theta = Math.toDegrees(Math.atan(tanTheta));
+		}
+		
+		if(deltaZ < 0)
+		{
+			theta += 180;
+		}
+		
+		return (float)(theta - player.getYaw());
+	}
+	
+	/**
+	 * Turn a registry name into something to show the player, so
+	 * minecraft:iron_golem becomes Iron Golem
+	 * @param registryName - Registry name of the type
+	 * @return name to show
+	 */
+	private static String displayName(String registryName)
+	{
+		String path = registryName.substring(registryName.indexOf(':') + 1);
+		StringBuilder name = new StringBuilder();
+		for (String word : path.split("_"))
+		{
+			if (word.isEmpty())
+			{
+				continue;
+			}
+			if (name.length() > 0)
+			{
+				name.append(' ');
+			}
+			name.append(Character.toUpperCase(word.charAt(0))).append(word.substring(1));
+		}
+		return name.toString();
+	}
+	
+	/**
+	 * Compass points to whichever saved location is closest.
+	 * 
+	 * The locations are kept in a tree so the closest one can be found 
+	 * quickly.  The tree is built on the saver thread the first time the
+	 * mode is picked, and built again after each save, then handed over
+	 * whole.  The compass update thread only looks things up in it, which
+	 * doesn't allocate.  All compasses share that thread, so they can 
+	 * share the tree.
+	 * @author theredwagoneer
+	 *
+	 */
+	private class NearestLocationMode implements ICompassMode
+	{
+		/** Saved locations by position in the list, or null until the first
+		 * build is done.  Only looked up from the compass update thread. */
+		private volatile KdTree tree = null;
+		
+		/** True once the mode has been picked, so saves build the tree again */
+		private volatile boolean wanted = false;
+		
+		/** Set when a new tree is handed over, so the compasses using the 
+		 * mode can point again */
+		private final AtomicBoolean changed = new AtomicBoolean(false);
+		
+		/**
+		 * Start building the tree in the background, unless that has been
+		 * done already.  Called when the mode is picked.
+		 */
+		void want()
+		{
+			if (!wanted)
+			{
+				wanted = true;
+				getSaver().submit(this, this::build);
+			}
+		}
+		
+		/**
+		 * Let the mode know a location was saved
+		 */
+		void locationChanged()
+		{
+			if (wanted)
+			{
+				// A build still waiting to run is replaced, not repeated
+				getSaver().submit(this, this::build);
+			}
+		}
+		
+		/**
+		 * Has a new tree been handed over since this was last asked?
+		 * @return true once for each new tree
+		 */
+		boolean takeChanged()
+		{
+			return changed.getAndSet(false);
+		}
+		
+		/**
+		 * Build the tree from the whole list and hand it over.  Runs on the
+		 * saver thread.
+		 */
+		private void build()
+		{
+			loadAll();
+			KdTree fresh = new KdTree();
+			for ( int i = 0; i < modeSaveList.size(); i++ )
+			{
+				SavedLocationMode loc = modeSaveList.get(i);
+				if (!loc.isUnreadable())
+				{
+					SavedLocation saved = loc.snapshot();
+					if (saved.hasSavedLocation)
+					{
+						fresh.put(i, saved.xsaved, saved.zsaved);
+					}
+				}
+			}
+			fresh.rebuild();
+			tree = fresh;
+			changed.set(true);
+		}
+		
+		public boolean isOffMode()
+		{
+			return false;
+		}
+		public String saveCurrentLocation(double x, double z)
+		{
+			return "Pick a location before saving.  Cannot save to the Nearest Location Compass";
+		}
+		public String getSwitchString()
+		{
+			return "Compass Pointing to Nearest Saved Location";
+		}
+		
+	    public float computeDirection(PlayerState player)
+	    {
+	    	KdTree locations = tree;
+	    	if (locations == null || locations.nearest(player.getX(), player.getZ()) < 0)
+	    	{
+	    		return 0;
+	    	}
+	    	return pointTo(locations.getNearestX(), locations.getNearestZ(), player);
+	    }
+	}
+	
+	/**
+	 * Compass points to the nearest entity of the tracked type, such as 
+	 * the nearest other player.
+	 * 
+	 * The world can't be searched from the compass update thread, so the
+	 * entity tracker does that on the client thread and publishes where 
+	 * the target is.
+	 * @author theredwagoneer
+	 *
+	 */
+	private class NearestEntityMode implements ICompassMode
+	{
+		/** Name of the tracked type to show the player */
+		private final String typeName = displayName(CompassConst.TRACKED_ENTITY);
+		
+		/** Target position read from the tracker.  Update thread only. */
+		private final double[] target = new double[2];
+		
+		public boolean isOffMode()
+		{
+			return false;
+		}
+		public String saveCurrentLocation(double x, double z)
+		{
+			return "Pick a location before saving.  Cannot save to the Nearest " + typeName + " Compass";
+		}
+		public String getSwitchString()
+		{
+			return "Compass Pointing to Nearest " + typeName;
+		}
+	    public float computeDirection(PlayerState player)
+	    {
+	    	if (!entityTarget.read(target))
+	    	{
+	    		return 0;
+	    	}
+	    	return pointTo(target[0], target[1], player);
+	    }
+	}
+	
+	/**
+	 * Compass points to the nearest loaded block of the tracked type, such
+	 * as the nearest diamond ore.
+	 * 
+	 * The chunks can't be looked through from the compass update thread,
+	 * so the block tracker does that on the client thread and publishes 
+	 * where the closest one is.
+	 * @author theredwagoneer
+	 *
+	 */
+	private class NearestBlockMode implements ICompassMode
+	{
+		/** Name of the tracked block to show the player */
+		private final String blockName = displayName(CompassConst.TRACKED_BLOCK);
+		
+		/** Target position read from the tracker.  Update thread only. */
+		private final double[] target = new double[2];
+		
+		public boolean isOffMode()
+		{
+			return false;
+		}
+		public String saveCurrentLocation(double x, double z)
+		{
+			return "Pick a location before saving.  Cannot save to the Nearest " + blockName + " Compass";
+		}
+		public String getSwitchString()
+		{
+			return "Compass Pointing to Nearest " + blockName;
+		}
+	    public float computeDirection(PlayerState player)
 	    {
-	    	return (float)(180 - mc.player.yRot);	
+	    	if (!blockTarget.read(target))
+	    	{
+	    		return 0;
+	    	}
+	    	return pointTo(target[0], target[1], player);
 	    }
 	}
 	
+	/**
+	 * One saved location.  Never changed once made, so it can be handed
+	 * between threads as is.  These are what go in the json file.
+	 * @author theredwagoneer
+	 *
+	 */
+	private static class SavedLocation
+	{
+		private final double xsaved;
+		private final double zsaved;
+		private final boolean hasSavedLocation;
+		private final boolean writeProtect;
+		private final String locationText;
+		
+		SavedLocation(double xsaved, double zsaved, boolean hasSavedLocation, boolean writeProtect, String locationText)
+		{
+			this.xsaved = xsaved;
+			this.zsaved = zsaved;
+			this.hasSavedLocation = hasSavedLocation;
+			this.writeProtect = writeProtect;
+			this.locationText = locationText;
+		}
+	}
+	
 	/**
 	 * Compass points to a previously saved location
 	 * @author theredwagoneer
@@ -218,85 +1042,183 @@ class CompassModeMgr {
 	 */
 	private class SavedLocationMode implements ICompassMode
 	{
-		private double xsaved = 0;
-		private double zsaved = 0;
-		private boolean hasSavedLocation = false;
-		private boolean writeProtect = false;
-		private String locationText;
+		/** The location.  The client thread saves by swapping in a new one,
+		 * so the update thread always sees the whole of one save. */
+		private volatile SavedLocation saved;
+		
+		/** Position in the location list */
+		private int index = 0;
+		
+		/** File index to read this location from, or null once it is read */
+		private LocationFileIndex source = null;
+		
+		/** False until the location has been read from the file */
+		private volatile boolean loaded = true;
+		
+		/** True if the entry in the file couldn't be read */
+		private boolean unreadable = false;
 	    
 		SavedLocationMode(String locationText)
 		{
-			this.locationText = locationText;
+			this.saved = new SavedLocation(0, 0, false, false, locationText);
+		}
+		
+		/**
+		 * Constructor for a location that isn't read from the file until
+		 * it is used
+		 * @param source - Index of the location file
+		 * @param entry - Which entry in the file
+		 */
+		SavedLocationMode(LocationFileIndex source, int entry)
+		{
+			this.source = source;
+			this.index = entry;
+			this.saved = new SavedLocation(0, 0, false, false, "Location " + entry);
+			this.loaded = false;
+		}
+		
+		/**
+		 * Read the location from the file if it hasn't been already.  If it
+		 * can't be read, it is left blank and marked unreadable.  
+		 */
+		private void ensureLoaded()
+		{
+			if (loaded)
+			{
+				return;
+			}
+			synchronized (this)
+			{
+				if (loaded)
+				{
+					return;
+				}
+				LocationRecord record;
+				try
+				{
+					record = source.read(index);
+				}
+				catch (IOException | JsonParseException e)
+				{
+					record = null;
+				}
+				fill(record);
+			}
+		}
+		
+		/**
+		 * Set the location read from the file, unless it has been already
+		 * @param record - What was read, or null if the entry was bad
+		 */
+		synchronized void fill(LocationRecord record)
+		{
+			if (loaded)
+			{
+				return;
+			}
+			if (record == null)
+			{
+				unreadable = true;
+			}
+			else
+			{
+				String text = (record.getLocationText() != null) ? record.getLocationText() : saved.locationText;
+				saved = new SavedLocation(record.getX(), record.getZ(), record.hasSavedLocation(), 
+						record.isWriteProtected(), text);
+			}
+			source = null;
+			loaded = true;
+		}
+		
+		/**
+		 * @return the file index this still has to be read from, or null 
+		 * 			if it has been read
+		 */
+		synchronized LocationFileIndex pendingSource()
+		{
+			return source;
+		}
+		
+		/**
+		 * Check if the entry in the file was bad.  Reads it if needed.
+		 * @return true if it couldn't be read
+		 */
+		boolean isUnreadable()
+		{
+			ensureLoaded();
+			return unreadable;
 		}
+		
+		/**
+		 * Constructor from a stored record
+		 * @param record - Record to copy
+		 */
+		SavedLocationMode(LocationRecord record)
+		{
+			this.saved = new SavedLocation(record.getX(), record.getZ(), record.hasSavedLocation(), 
+					record.isWriteProtected(), record.getLocationText());
+		}
+		
+		/**
+		 * Copy this location into a record for storing
+		 * @param recordIndex - Position of the location in the list
+		 * @return the record
+		 */
+		LocationRecord toRecord(int recordIndex)
+		{
+			SavedLocation loc = snapshot();
+			return new LocationRecord(recordIndex, loc.xsaved, loc.zsaved, loc.hasSavedLocation, 
+					loc.writeProtect, loc.locationText);
+		}
+		
+		/**
+		 * @return the location as it is now, read from the file if needed
+		 */
+		SavedLocation snapshot()
+		{
+			ensureLoaded();
+			return saved;
+		}
+		
 		public boolean isOffMode()
 		{
 			return false;
 		}
-		public String saveCurrentLocation()
+		public String saveCurrentLocation(double x, double z)
 		{
-			if (writeProtect == false)
+			SavedLocation loc = snapshot();
+			if (loc.writeProtect == false)
 			{
-				xsaved = mc.player.xo;
-				zsaved = mc.player.zo;
-				hasSavedLocation = true;
-				return MessageFormat.format("({0},{1}) saved to {2}",xsaved,zsaved,locationText);
+				saved = new SavedLocation(x, z, true, false, loc.locationText);
+				return MessageFormat.format("({0},{1}) saved to {2}",x,z,loc.locationText);
 			}
 			else
 			{
-				return MessageFormat.format("{0} has been write protected.  You cannot save to this location",locationText);
+				return MessageFormat.format("{0} has been write protected.  You cannot save to this location",loc.locationText);
 			}
 		}
 		
 		public String getSwitchString()
 		{
-			if (hasSavedLocation)
+			SavedLocation loc = snapshot();
+			if (loc.hasSavedLocation)
 			{
-				return MessageFormat.format("Compass Pointing to {0}: ({1},{2})",locationText,xsaved,zsaved);
+				return MessageFormat.format("Compass Pointing to {0}: ({1},{2})",loc.locationText,loc.xsaved,loc.zsaved);
 			}
 			else
 			{
-				return MessageFormat.format("{0} selected, but no location saved",locationText);
+				return MessageFormat.format("{0} selected, but no location saved",loc.locationText);
 			}
 		}
 		
-	    public float computeDirection()
+	    public float computeDirection(PlayerState player)
 	    {
-	    	double tanTheta;
-	    	double theta = 0;
-	    	double deltaZ = zsaved - mc.player.zo ;
-	    	double deltaX = mc.player.xo - xsaved;
-	    	
-	    	if (!hasSavedLocation)
+	    	SavedLocation loc = snapshot();
+	    	if (!loc.hasSavedLocation)
 	    	{
 	    		return 0;
 	    	}
-	    	
-	    	if (deltaZ == 0) {
-	    		// Deal with divide by 0
-	    		if (deltaX < 0)
-	    		{
-	    			if (deltaX > 0)
-	    			{
-	    				theta = 90;
-	    			}
-	    			else
-	    			{
-	    				theta = -90;
-	    			}
-	    		}
-	    	}
-	    	else
-	    	{
-	    		tanTheta = deltaX / deltaZ;
-	    		theta = Math.toDegrees(Math.atan(tanTheta));
-	    	}
-	    	
-	    	if(deltaZ < 0)
-	    	{
-	    		theta += 180;
-	    	}
-	    	
-	    	return (float)(theta - mc.player.yRot);	
+	    	return pointTo(loc.xsaved, loc.zsaved, player);
 	    }	
 	}
-}
\ No newline at end of file
+}
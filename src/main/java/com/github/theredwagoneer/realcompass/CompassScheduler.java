@@ -0,0 +1,232 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * One thread that updates every compass attached.
+ * 
+ * Each compass is updated when it has something to do, at a fixed rate
+ * set by the update period.  In between, the thread parks until the next
+ * compass is due or one of them wakes it up.  The period can be changed
+ * while running.
+ * 
+ * For replays it can instead run without a thread on a made up clock, 
+ * with the caller stepping it along.
+ * 
+ * @author theredwagoneer
+ *
+ */
+class CompassScheduler {
+	/** Longest the thread parks without being woken, in ns */
+	private static final long IDLE_WAKE_NS = TimeUnit.SECONDS.toNanos(1);
+	
+	/** The compasses to update */
+	private final List<Compass> compasses = new CopyOnWriteArrayList<Compass>();
+	
+	/** The update thread, or null if the caller steps the updates */
+	private final Thread updater;
+	
+	/** Where time comes from, in ns */
+	private final LongSupplier clock;
+	
+	/** Exit the update thread */
+	private volatile boolean killTheUpdate = false;
+	
+	/** Time between updates of each compass, in ns */
+	private volatile long periodNanos = TimeUnit.MILLISECONDS.toNanos(CompassConst.UPDATE_PERIOD_MS);
+	
+	/**
+	 * Constructor.  Starts the update thread.
+	 */
+	CompassScheduler()
+	{
+		clock = System::nanoTime;
+		updater = new Thread(this::run, "Compass Update Thread");
+		updater.setDaemon(true);
+		updater.setPriority(Thread.MIN_PRIORITY);
+		updater.start();
+	}
+	
+	/**
+	 * Constructor without a thread.  Nothing is updated until 
+	 * {@link #runDue()} is called, and each compass gets ready in its
+	 * constructor, so the same steps always give the same result.
+	 * @param clock - Source of time in ns
+	 */
+	CompassScheduler(LongSupplier clock)
+	{
+		this.clock = clock;
+		updater = null;
+	}
+	
+	/**
+	 * @return the time now in ns, from the scheduler's clock
+	 */
+	long now()
+	{
+		return clock.getAsLong();
+	}
+	
+	/**
+	 * Run a compass's start up work, on its own thread unless the caller
+	 * steps the updates
+	 * @param task - Work to run
+	 * @param name - Name for the thread
+	 */
+	void startInit(Runnable task, String name)
+	{
+		if (updater == null)
+		{
+			task.run();
+			return;
+		}
+		Thread init = new Thread(task, name);
+		init.setDaemon(true);
+		init.start();
+	}
+	
+	/**
+	 * Start updating a compass
+	 * @param compass - Compass to add
+	 */
+	void add(Compass compass)
+	{
+		compasses.add(compass);
+		wake();
+	}
+	
+	/**
+	 * Stop updating a compass.  It may still be in the middle of an update
+	 * when this returns.
+	 * @param compass - Compass to remove
+	 */
+	void remove(Compass compass)
+	{
+		compasses.remove(compass);
+		wake();
+	}
+	
+	/**
+	 * @return time between updates of each compass, in ns
+	 */
+	long getPeriodNanos()
+	{
+		return periodNanos;
+	}
+	
+	/**
+	 * Change the time between updates.  Takes effect from each compass's
+	 * next update.
+	 * @param periodMs - New period in ms
+	 */
+	void setPeriodMs(int periodMs)
+	{
+		periodNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, periodMs));
+		wake();
+	}
+	
+	/**
+	 * Switch to the next longer period in the choices, going back to the
+	 * shortest after the longest.
+	 * @return the new period in ms
+	 */
+	int nextPeriod()
+	{
+		long current = periodNanos;
+		int[] choices = CompassConst.UPDATE_PERIOD_CHOICES_MS;
+		int next = choices[0];
+		for (int ms : choices)
+		{
+			if (TimeUnit.MILLISECONDS.toNanos(ms) > current)
+			{
+				next = ms;
+				break;
+			}
+		}
+		setPeriodMs(next);
+		return next;
+	}
+	
+	/**
+	 * Let the thread know a compass may have something to do
+	 */
+	void wake()
+	{
+		LockSupport.unpark(updater);
+	}
+	
+	/**
+	 * Kill the update thread before the object goes out of scope
+	 */
+	void kill()
+	{
+		killTheUpdate = true;
+		wake();
+	}
+	
+	/**
+	 * Update each compass that has something to do and is due, then park
+	 * until the next one is due.
+	 */
+	private void run()
+	{
+		while ( killTheUpdate == false )
+		{
+			long waitNanos = runDue();
+			if (waitNanos > 0)
+			{
+				LockSupport.parkNanos(this, waitNanos);
+			}
+		}
+	}
+	
+	/**
+	 * Update each compass that has something to do and is due.
+	 * 
+	 * Each compass records how late its updates started in its metrics,
+	 * so a slow compass shows up as holding up the rest.
+	 * @return time until the next compass is due in ns, or 0 or less if
+	 * 			one already is
+	 */
+	long runDue()
+	{
+		long waitNanos = IDLE_WAKE_NS;
+		
+		for (Compass compass : compasses)
+		{
+			if (!compass.wantsUpdate())
+			{
+				continue;
+			}
+			
+			long now = clock.getAsLong();
+			long due = compass.getNextUpdateNanos();
+			if (due - now <= 0)
+			{
+				try
+				{
+					compass.update();
+				}
+				catch (RuntimeException e)
+				{
+					// A bug in one compass mustn't stop the thread and
+					// freeze all of them
+					e.printStackTrace();
+					compass.updateFailed();
+				}
+				if (!compass.wantsUpdate())
+				{
+					continue;
+				}
+				now = clock.getAsLong();
+				due = compass.getNextUpdateNanos();
+			}
+			waitNanos = Math.min(waitNanos, due - now);
+		}
+		return waitNanos;
+	}
+}
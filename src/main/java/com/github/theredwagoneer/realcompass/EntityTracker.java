@@ -0,0 +1,316 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.util.function.Predicate;
+
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityType;
+import net.minecraft.entity.player.PlayerEntity;
+import net.minecraft.util.math.AxisAlignedBB;
+import net.minecraft.world.World;
+
+/**
+ * Finds the nearest entity of one type for the nearest entity mode.
+ *
+ * The client world can only be looked at from the client tick thread, so
+ * this runs there and publishes where the target is for the compass
+ * update thread.
+ *
+ * To keep the cost of a tick down however crowded it gets, a search only
+ * starts every few ticks.  Players are found from the world's short list
+ * of players.  Anything else is searched for one chunk section at a time
+ * around the player.  Once a tick has looked at enough entities, the
+ * rest wait for the next tick, even part way through a section, so one
+ * packed mob farm can't make a tick slow.  In between, only the
+ * current target is followed.  A new target has to be clearly closer
+ * before we switch to it, so the needle doesn't flap between two that
+ * are about the same distance away.
+ *
+ * Only used from the client tick thread.
+ *
+ * @author theredwagoneer
+ *
+ */
+class EntityTracker {
+	/** Chunks searched each way from the player's chunk */
+	private static final int SCAN_CHUNKS = ((int)CompassConst.ENTITY_RANGE + 15) / 16;
+
+	/** Chunk sections along each side of the search */
+	private static final int SCAN_SIDE = 2 * SCAN_CHUNKS + 1;
+
+	/** Chunk sections in the whole search */
+	private static final int SCAN_CELLS = SCAN_SIDE * SCAN_SIDE * SCAN_SIDE;
+
+	/** Type of entity to point to, or null if the name wasn't known */
+	private final EntityType<?> type;
+
+	/** Entity the compass points to, or null */
+	private Entity target = null;
+
+	/** World the target is in */
+	private World targetLevel = null;
+
+	/** Ticks since the last search finished */
+	private int ticksSinceScan = CompassConst.ENTITY_SCAN_TICKS;
+
+	/** Target position last published */
+	private double publishedX = 0;
+	private double publishedZ = 0;
+	private boolean publishedFound = false;
+
+	/** Is a search in progress? */
+	private boolean scanning = false;
+
+	/** Next chunk section of the search to look in */
+	private int scanCell;
+
+	/** Chunk section the player was in when the search started */
+	private int scanChunkX;
+	private int scanChunkY;
+	private int scanChunkZ;
+
+	/** Entities in the current section that were already looked at in an
+	 * earlier tick */
+	private int cellResume;
+
+	/** Entities handed to us so far from the current section */
+	private int cellSeen;
+
+	/** First entity in the current section that was left for the next
+	 * tick, or -1 if none were */
+	private int cellStop;
+
+	/** Player the search is around */
+	private Entity scanPlayer;
+
+	/** Closest entity found by the search so far */
+	private Entity best;
+
+	/** Square of the horizontal distance to best */
+	private double bestDistSq;
+
+	/** Entities looked at by the search this tick */
+	private int examined;
+
+	/** Looks at each entity in the box.  Made once so a search doesn't allocate it. */
+	private final Predicate<Entity> consider = this::consider;
+
+	/**
+	 * Constructor
+	 * @param typeName - Registry name of the type of entity to point to,
+	 * 			such as minecraft:player.  Nothing is found if it isn't known.
+	 */
+	EntityTracker(String typeName)
+	{
+		this.type = EntityType.byString(typeName).orElse(null);
+	}
+
+	/**
+	 * Follow the target for one tick, carrying on with the search for a
+	 * better one, and publish where it is.
+	 * @param player - The player
+	 * @param level - The world the player is in
+	 * @param out - Where to publish the target
+	 * @return true if what was published changed enough to point the
+	 * 			compass again
+	 */
+	boolean tick(Entity player, World level, TargetHolder out)
+	{
+		if (level != targetLevel)
+		{
+			target = null;
+			targetLevel = level;
+			scanning = false;
+			ticksSinceScan = CompassConst.ENTITY_SCAN_TICKS;
+		}
+		if (target != null && (!target.isAlive() || distSq(player, target) > CompassConst.ENTITY_RANGE_SQ))
+		{
+			// Gone.  Look for another straight away.
+			target = null;
+			ticksSinceScan = CompassConst.ENTITY_SCAN_TICKS;
+		}
+
+		ticksSinceScan++;
+		if (!scanning && ticksSinceScan >= CompassConst.ENTITY_SCAN_TICKS)
+		{
+			startScan(player);
+		}
+		if (scanning)
+		{
+			continueScan(player, level);
+		}
+
+		if (target == null)
+		{
+			if (publishedFound)
+			{
+				publishedFound = false;
+				out.publish(false, 0, 0);
+				return true;
+			}
+			return false;
+		}
+
+		double x = target.getX();
+		double z = target.getZ();
+		if (publishedFound && Math.abs(x - publishedX) < CompassConst.ENTITY_MOVE_DEADBAND
+				&& Math.abs(z - publishedZ) < CompassConst.ENTITY_MOVE_DEADBAND)
+		{
+			return false;
+		}
+		publishedFound = true;
+		publishedX = x;
+		publishedZ = z;
+		out.publish(true, x, z);
+		return true;
+	}
+
+	/**
+	 * Start a search around where the player is now
+	 * @param player - The player
+	 */
+	private void startScan(Entity player)
+	{
+		scanning = true;
+		scanCell = 0;
+		cellResume = 0;
+		scanChunkX = (int)Math.floor(player.getX()) >> 4;
+		scanChunkY = (int)Math.floor(player.getY()) >> 4;
+		scanChunkZ = (int)Math.floor(player.getZ()) >> 4;
+		best = null;
+		bestDistSq = Double.MAX_VALUE;
+	}
+
+	/**
+	 * Carry on with the search until it is done or this tick has looked
+	 * at enough entities
+	 * @param player - The player
+	 * @param level - The world the player is in
+	 */
+	private void continueScan(Entity player, World level)
+	{
+		scanPlayer = player;
+		examined = 0;
+		if (type == EntityType.PLAYER)
+		{
+			for (PlayerEntity other : level.players())
+			{
+				if (other != player)
+				{
+					look(other);
+				}
+			}
+			finishScan(player);
+		}
+		else
+		{
+			while (scanCell < SCAN_CELLS && examined < CompassConst.ENTITY_SCAN_MAX)
+			{
+				int x = (scanChunkX + scanCell % SCAN_SIDE - SCAN_CHUNKS) << 4;
+				int y = (scanChunkY + (scanCell / SCAN_SIDE) % SCAN_SIDE - SCAN_CHUNKS) << 4;
+				int z = (scanChunkZ + scanCell / (SCAN_SIDE * SCAN_SIDE) - SCAN_CHUNKS) << 4;
+				AxisAlignedBB box = new AxisAlignedBB(x, y, z, x + 16, y + 16, z + 16);
+				
+				// consider() never says yes, so no list is built up
+				cellSeen = 0;
+				cellStop = -1;
+				level.getEntities(player, box, consider);
+				if (cellStop >= 0)
+				{
+					// Ran out part way through.  Pick the section up again
+					// next tick from where we stopped.
+					cellResume = cellStop;
+					break;
+				}
+				cellResume = 0;
+				scanCell++;
+			}
+			if (scanCell == SCAN_CELLS)
+			{
+				finishScan(player);
+			}
+		}
+		scanPlayer = null;
+	}
+
+	/**
+	 * The search is done.  Switch to what it found if it is clearly closer
+	 * than the target.
+	 * @param player - The player
+	 */
+	private void finishScan(Entity player)
+	{
+		if (best != null && best != target && best.isAlive())
+		{
+			double d = distSq(player, best);
+			if (d <= CompassConst.ENTITY_RANGE_SQ 
+					&& (target == null || d < distSq(player, target) * CompassConst.ENTITY_SWITCH_RATIO))
+			{
+				target = best;
+			}
+		}
+		best = null;
+		scanning = false;
+		ticksSinceScan = 0;
+	}
+
+	/**
+	 * Look at one entity in the search.  The world still hands us the
+	 * rest of the section once this tick has looked at enough, so those
+	 * are only counted.
+	 * @param entity - Entity in the search
+	 * @return always false
+	 */
+	private boolean consider(Entity entity)
+	{
+		int index = cellSeen++;
+		if (index < cellResume)
+		{
+			// Looked at in an earlier tick
+			return false;
+		}
+		if (examined >= CompassConst.ENTITY_SCAN_MAX)
+		{
+			if (cellStop < 0)
+			{
+				cellStop = index;
+			}
+			return false;
+		}
+		examined++;
+		look(entity);
+		return false;
+	}
+
+	/**
+	 * Keep an entity as the best so far if it is the right type and the
+	 * closest yet
+	 * @param entity - Entity in the search
+	 */
+	private void look(Entity entity)
+	{
+		if (entity.getType() != type || !entity.isAlive())
+		{
+			return;
+		}
+		double d = distSq(scanPlayer, entity);
+		if (d <= CompassConst.ENTITY_RANGE_SQ && d < bestDistSq)
+		{
+			best = entity;
+			bestDistSq = d;
+		}
+	}
+
+	/**
+	 * Square of the horizontal distance between two entities.  The compass
+	 * only points sideways, so height doesn't count.
+	 * @param a - First entity
+	 * @param b - Second entity
+	 * @return distance squared
+	 */
+	private static double distSq(Entity a, Entity b)
+	{
+		double dx = a.getX() - b.getX();
+		double dz = a.getZ() - b.getZ();
+		return dx * dx + dz * dz;
+	}
+}
@@ -0,0 +1,147 @@
+package com.github.theredwagoneer.realcompass;
+
+/**
+ * Leads the heading to make up for the time it takes the needle to get
+ * there.
+ * 
+ * Between the player turning and the needle arriving there is the update
+ * period, the USB latency and the motor's acceleration ramp.  This tracks 
+ * how fast the heading is changing from the tick stamped history and
+ * returns where the heading will be once the needle catches up.
+ * 
+ * On a sudden reversal, or a jump such as a mode change, the plain 
+ * heading is used until the rate settles again.
+ * 
+ * @author theredwagoneer
+ *
+ */
+class HeadingPredictor {
+	/** Seconds per client tick */
+	private static final double SECONDS_PER_TICK = 0.05;
+	
+	/** A change bigger than this in one tick is a jump, not a turn */
+	private static final double JUMP_DEG_PER_TICK = 90;
+	
+	/** Weight of the newest sample in the rate estimate */
+	private static final double RATE_SMOOTHING = 0.5;
+	
+	/** Most we will lead the heading by, in degrees.  0 turns prediction off */
+	private final double maxLeadDeg;
+	
+	/** Fixed delay before a target gets to the motor, in seconds */
+	private double baseLeadS;
+	
+	/** Tick of the last heading seen */
+	private long lastTick = -1;
+	
+	/** Last heading seen, in degrees */
+	private double lastHeading = 0;
+	
+	/** Estimated rate of change of heading, in degrees per second */
+	private double rate = 0;
+	
+	/**
+	 * Constructor
+	 * @param maxLeadDeg - Most we will lead the heading by, in degrees
+	 * @param baseLeadMs - Fixed delay before a target gets to the motor, in ms
+	 */
+	HeadingPredictor(double maxLeadDeg, double baseLeadMs)
+	{
+		this.maxLeadDeg = maxLeadDeg;
+		this.baseLeadS = baseLeadMs / 1000.0;
+	}
+	
+	/**
+	 * Change the fixed delay, such as when the update period changes
+	 * @param baseLeadMs - Fixed delay before a target gets to the motor, in ms
+	 */
+	void setBaseLeadMs(double baseLeadMs)
+	{
+		this.baseLeadS = baseLeadMs / 1000.0;
+	}
+	
+	/**
+	 * Forget the history, such as after a mode change.
+	 */
+	void reset()
+	{
+		lastTick = -1;
+		rate = 0;
+	}
+	
+	/**
+	 * Estimated rate of change of the heading
+	 * @return rate in degrees per second
+	 */
+	double getRate()
+	{
+		return rate;
+	}
+	
+	/**
+	 * Predict the heading for when the needle arrives.
+	 * @param heading - Heading computed from the latest player state, in degrees
+	 * @param tick - Client tick of the player state
+	 * @return heading to command, in degrees
+	 */
+	float predict(float heading, long tick)
+	{
+		if (lastTick < 0)
+		{
+			lastTick = tick;
+			lastHeading = heading;
+			return heading;
+		}
+		
+		if (tick > lastTick)
+		{
+			double change = wrap(heading - lastHeading);
+			double perTick = change / (tick - lastTick);
+			double sample = perTick / SECONDS_PER_TICK;
+			
+			lastTick = tick;
+			lastHeading = heading;
+			
+			if (Math.abs(perTick) > JUMP_DEG_PER_TICK || sample * rate < 0)
+			{
+				// Jumped or reversed.  Start over from here.
+				rate = 0;
+				return heading;
+			}
+			rate = RATE_SMOOTHING * sample + (1 - RATE_SMOOTHING) * rate;
+		}
+		
+		if (maxLeadDeg <= 0)
+		{
+			return heading;
+		}
+		
+		// The motor also lags by about half the time it takes to ramp up to speed
+		double speed = Math.min(Math.abs(rate) * CompassConst.MICROSTEPS_PER_DEG, CompassConst.MAX_SPEED_PER_S);
+		double leadS = baseLeadS + speed / (2 * CompassConst.MAX_ACCEL_PER_S2);
+		
+		double lead = rate * leadS;
+		lead = Math.max(-maxLeadDeg, Math.min(maxLeadDeg, lead));
+		
+		return (float)(heading + lead);
+	}
+	
+	/**
+	 * Wrap an angle into -180 to 180
+	 * @param degrees - angle to wrap
+	 * @return wrapped angle
+	 */
+	private static double wrap(double degrees)
+	{
+		degrees %= 360;
+		if (degrees > 180)
+		{
+			degrees -= 360;
+		}
+		else if (degrees < -180)
+		{
+			degrees += 360;
+		}
+		return degrees;
+	}
+}
@@ -0,0 +1,97 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.util.Map;
+
+import javax.usb.UsbException;
+
+import com.github.theredwagoneer.javatic.TicSet;
+
+/**
+ * What the compass needs from a motor controller.
+ * 
+ * Positions are in microsteps and velocities in microsteps per 10000 s,
+ * the same units the TIC uses.
+ * 
+ * @author theredwagoneer
+ *
+ */
+interface IMotorDriver
+{
+	/**
+	 * Apply the motor settings to the controller.  Settings not in the map
+	 * are left alone.
+	 * @param settings - Map of settings to apply
+	 */
+	public void applySettings(Map<TicSet, Long> settings);
+	
+	/**
+	 * Read the settings the controller has now, as far as the driver 
+	 * knows.  The real TIC driver can't read them from the TIC, so it 
+	 * only knows what it has written since the game started.
+	 * @return map of settings.  Settings that aren't known, such as any
+	 * 			not written this session or since a reconnect, are left out.
+	 * @throws UsbException
+	 */
+	public Map<TicSet, Long> readSettings() throws UsbException;
+	
+	/**
+	 * Open the controller again after it was unplugged.  It will have lost
+	 * its position, and its settings can't be trusted, so they should all
+	 * be written again.
+	 * @throws UsbException if it still isn't there
+	 */
+	public void reconnect() throws UsbException;
+	
+	/**
+	 * Energize the motor
+	 * @throws UsbException
+	 */
+	public void energize() throws UsbException;
+	
+	/**
+	 * Deenergize the motor
+	 * @throws UsbException
+	 */
+	public void deenergize() throws UsbException;
+	
+	/**
+	 * Call where ever the motor is now home
+	 * @throws UsbException
+	 */
+	public void setHome() throws UsbException;
+	
+	/**
+	 * Move to a position
+	 * @param position - Target position in microsteps
+	 * @throws UsbException
+	 */
+	public void setTargetPosition(int position) throws UsbException;
+	
+	/**
+	 * Run at a velocity
+	 * @param velocity - Target velocity in microsteps per 10000 s
+	 * @throws UsbException
+	 */
+	public void setTargetVelocity(int velocity) throws UsbException;
+	
+	/**
+	 * Stop right away and call the current position something else
+	 * @param position - New position in microsteps
+	 * @throws UsbException
+	 */
+	public void haltAndSetPosition(int position) throws UsbException;
+	
+	/**
+	 * Read the current position
+	 * @return position in microsteps
+	 * @throws UsbException
+	 */
+	public long getCurrentPosition() throws UsbException;
+	
+	/**
+	 * Read the current velocity
+	 * @return velocity in microsteps per 10000 s
+	 * @throws UsbException
+	 */
+	public long getCurrentVelocity() throws UsbException;
+}
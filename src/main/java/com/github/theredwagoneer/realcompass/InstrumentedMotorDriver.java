@@ -0,0 +1,265 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+
+import com.github.theredwagoneer.javatic.TicSet;
+
+/**
+ * Wraps another motor driver and records how long every call takes and
+ * how often it fails.
+ * 
+ * @author theredwagoneer
+ *
+ */
+class InstrumentedMotorDriver implements IMotorDriver
+{
+	/** Driver doing the real work */
+	private final IMotorDriver driver;
+	
+	/** Where to record */
+	private final CompassMetrics metrics;
+	
+	/** Where time comes from, in ns */
+	private final LongSupplier clock;
+	
+	/**
+	 * Constructor
+	 * @param driver - Driver doing the real work
+	 * @param metrics - Where to record
+	 * @param clock - Source of time in ns
+	 */
+	InstrumentedMotorDriver(IMotorDriver driver, CompassMetrics metrics, LongSupplier clock)
+	{
+		this.driver = driver;
+		this.metrics = metrics;
+		this.clock = clock;
+	}
+	
+	public void applySettings(Map<TicSet, Long> settings)
+	{
+		long start = clock.getAsLong();
+		try
+		{
+			driver.applySettings(settings);
+		}
+		catch (UsbDisconnectedException e)
+		{
+			failed(e);
+			throw e;
+		}
+		finally
+		{
+			stop(CompassMetrics.Op.SETTINGS_WRITE, start);
+		}
+	}
+	
+	public Map<TicSet, Long> readSettings() throws UsbException
+	{
+		long start = clock.getAsLong();
+		try
+		{
+			return driver.readSettings();
+		}
+		catch (UsbDisconnectedException | UsbException e)
+		{
+			failed(e);
+			throw e;
+		}
+		finally
+		{
+			stop(CompassMetrics.Op.SETTINGS_READ, start);
+		}
+	}
+	
+	public void reconnect() throws UsbException
+	{
+		long start = clock.getAsLong();
+		try
+		{
+			driver.reconnect();
+		}
+		catch (UsbDisconnectedException | UsbException e)
+		{
+			failed(e);
+			throw e;
+		}
+		finally
+		{
+			stop(CompassMetrics.Op.CONTROL, start);
+		}
+	}
+	
+	public void energize() throws UsbException
+	{
+		long start = clock.getAsLong();
+		try
+		{
+			driver.energize();
+		}
+		catch (UsbDisconnectedException | UsbException e)
+		{
+			failed(e);
+			throw e;
+		}
+		finally
+		{
+			stop(CompassMetrics.Op.CONTROL, start);
+		}
+	}
+	
+	public void deenergize() throws UsbException
+	{
+		long start = clock.getAsLong();
+		try
+		{
+			driver.deenergize();
+		}
+		catch (UsbDisconnectedException | UsbException e)
+		{
+			failed(e);
+			throw e;
+		}
+		finally
+		{
+			stop(CompassMetrics.Op.CONTROL, start);
+		}
+	}
+	
+	public void setHome() throws UsbException
+	{
+		long start = clock.getAsLong();
+		try
+		{
+			driver.setHome();
+		}
+		catch (UsbDisconnectedException | UsbException e)
+		{
+			failed(e);
+			throw e;
+		}
+		finally
+		{
+			stop(CompassMetrics.Op.CONTROL, start);
+		}
+	}
+	
+	public void setTargetPosition(int position) throws UsbException
+	{
+		long start = clock.getAsLong();
+		try
+		{
+			driver.setTargetPosition(position);
+		}
+		catch (UsbDisconnectedException | UsbException e)
+		{
+			failed(e);
+			throw e;
+		}
+		finally
+		{
+			stop(CompassMetrics.Op.TARGET_WRITE, start);
+		}
+	}
+	
+	public void setTargetVelocity(int velocity) throws UsbException
+	{
+		long start = clock.getAsLong();
+		try
+		{
+			driver.setTargetVelocity(velocity);
+		}
+		catch (UsbDisconnectedException | UsbException e)
+		{
+			failed(e);
+			throw e;
+		}
+		finally
+		{
+			stop(CompassMetrics.Op.TARGET_WRITE, start);
+		}
+	}
+	
+	public void haltAndSetPosition(int position) throws UsbException
+	{
+		long start = clock.getAsLong();
+		try
+		{
+			driver.haltAndSetPosition(position);
+		}
+		catch (UsbDisconnectedException | UsbException e)
+		{
+			failed(e);
+			throw e;
+		}
+		finally
+		{
+			stop(CompassMetrics.Op.CONTROL, start);
+		}
+	}
+	
+	public long getCurrentPosition() throws UsbException
+	{
+		long start = clock.getAsLong();
+		try
+		{
+			return driver.getCurrentPosition();
+		}
+		catch (UsbDisconnectedException | UsbException e)
+		{
+			failed(e);
+			throw e;
+		}
+		finally
+		{
+			stop(CompassMetrics.Op.POSITION_READ, start);
+		}
+	}
+	
+	public long getCurrentVelocity() throws UsbException
+	{
+		long start = clock.getAsLong();
+		try
+		{
+			return driver.getCurrentVelocity();
+		}
+		catch (UsbDisconnectedException | UsbException e)
+		{
+			failed(e);
+			throw e;
+		}
+		finally
+		{
+			stop(CompassMetrics.Op.VELOCITY_READ, start);
+		}
+	}
+	
+	/**
+	 * Record how long a call took
+	 * @param op - Kind of operation to record it as
+	 * @param start - Time the call started in ns
+	 */
+	private void stop(CompassMetrics.Op op, long start)
+	{
+		metrics.record(op, clock.getAsLong() - start);
+	}
+	
+	/**
+	 * Count a failed call
+	 * @param e - What it threw
+	 */
+	private void failed(Exception e)
+	{
+		if (e instanceof UsbDisconnectedException)
+		{
+			metrics.disconnected();
+		}
+		else
+		{
+			metrics.usbError();
+		}
+	}
+}
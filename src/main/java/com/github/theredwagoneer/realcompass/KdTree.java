@@ -0,0 +1,692 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.util.Arrays;
+
+/**
+ * 2D tree of points on the x/z plane for finding the closest one.
+ * 
+ * The tree is kept in flat arrays, with each node in the middle of the
+ * range holding its subtree.  Added points go into a pending list and
+ * removed points are only marked.  Looking up the nearest point never
+ * rebuilds or allocates anything, so it is fine to call every update.
+ * The owner rebuilds with {@link #rebuild()} when it is a good time, such
+ * as after adding a batch of points, so the pending list stays short.
+ * 
+ * A rebuild can also be done a little at a time with
+ * {@link #startRebuild()} and {@link #rebuildStep(int)}, for an owner that
+ * can't stop for the whole thing.  The new tree is built in a second set
+ * of arrays while the old one keeps answering lookups, and points put or
+ * removed in the meantime are sorted out when it is swapped in.  The two
+ * sets of arrays are reused unless the tree has outgrown them.
+ * 
+ * Not thread safe.  Only use it from one thread.
+ * 
+ * @author theredwagoneer
+ *
+ */
+class KdTree {
+	/** Worth rebuilding once this many changes are waiting.  Bigger trees
+	 * allow the square root of their size. */
+	private static final int PENDING_LIMIT = 32;
+	
+	/** Ids of the points in the tree, in tree order */
+	private int[] ids = new int[0];
+	
+	/** X coordinates, in tree order */
+	private double[] xs = new double[0];
+	
+	/** Z coordinates, in tree order */
+	private double[] zs = new double[0];
+	
+	/** Marks tree points that have since been removed */
+	private boolean[] removed = new boolean[0];
+	
+	/** Number of points in the tree arrays, removed ones included */
+	private int treeSize = 0;
+	
+	/** Number of tree points that are marked removed */
+	private int removedCount = 0;
+	
+	/** Points added since the last rebuild */
+	private int[] pendIds = new int[PENDING_LIMIT];
+	private double[] pendXs = new double[PENDING_LIMIT];
+	private double[] pendZs = new double[PENDING_LIMIT];
+	private int pendCount = 0;
+	
+	/** Position of each id in the tree arrays, or -2 - position in the 
+	 * pending list, or -1 if it isn't there */
+	private int[] slotOf = new int[0];
+	
+	/** Steps of a rebuild */
+	private enum Stage { IDLE, COPY, BUILD, SLOTS };
+	
+	/** Where the rebuild is up to */
+	private Stage stage = Stage.IDLE;
+	
+	/** The tree being built, in tree order */
+	private int[] nextIds = new int[0];
+	private double[] nextXs = new double[0];
+	private double[] nextZs = new double[0];
+	private int nextSize = 0;
+	
+	/** Next slot of the old tree to copy */
+	private int copyNext = 0;
+	
+	/** Position of each id in the new tree, or -1 */
+	private int[] nextSlotOf = new int[0];
+	
+	/** How far filling in nextSlotOf has got */
+	private int slotNext = 0;
+	
+	/** Marks ids put or removed since the rebuild started */
+	private boolean[] dirty = new boolean[0];
+	
+	/** The ids marked in dirty */
+	private int[] dirtyIds = new int[32];
+	private int dirtyCount = 0;
+	
+	/** Ranges of the new tree still to arrange, as lo, hi and 1 to split
+	 * on x or 0 for z */
+	private int[] ranges = new int[3 * 32];
+	private int rangeCount = 0;
+	
+	/** The range being arranged and the quickselect on it */
+	private boolean selecting = false;
+	private int selLo;
+	private int selHi;
+	private boolean selSplitX;
+	private int selLeft;
+	private int selRight;
+	
+	/** The partition pass of the quickselect */
+	private boolean partitioning = false;
+	private double pivot;
+	private int lt;
+	private int gt;
+	private int next;
+	
+	/** Result of the last search */
+	private int bestId;
+	private double bestX;
+	private double bestZ;
+	private double bestDist;
+	
+	/**
+	 * @return number of points
+	 */
+	int size()
+	{
+		return treeSize - removedCount + pendCount;
+	}
+	
+	/**
+	 * @return number of points added since the last rebuild.  Lookups
+	 * 			check each of them.
+	 */
+	int getPendingCount()
+	{
+		return pendCount;
+	}
+	
+	/**
+	 * Remove all the points
+	 */
+	void clear()
+	{
+		treeSize = 0;
+		removedCount = 0;
+		pendCount = 0;
+		Arrays.fill(slotOf, -1);
+		if (stage != Stage.IDLE)
+		{
+			stage = Stage.IDLE;
+			clearDirty();
+		}
+	}
+	
+	/**
+	 * Add a point, or move it if the id is already there
+	 * @param id - Id of the point.  Must not be negative.
+	 * @param x - X coordinate
+	 * @param z - Z coordinate
+	 */
+	void put(int id, double x, double z)
+	{
+		remove(id);
+		if (pendCount == pendIds.length)
+		{
+			int length = pendCount * 2;
+			pendIds = Arrays.copyOf(pendIds, length);
+			pendXs = Arrays.copyOf(pendXs, length);
+			pendZs = Arrays.copyOf(pendZs, length);
+		}
+		if (id >= slotOf.length)
+		{
+			int length = Math.max(id + 1, slotOf.length * 2);
+			int old = slotOf.length;
+			slotOf = Arrays.copyOf(slotOf, length);
+			Arrays.fill(slotOf, old, length, -1);
+		}
+		if (stage != Stage.IDLE)
+		{
+			markDirty(id);
+		}
+		pendIds[pendCount] = id;
+		pendXs[pendCount] = x;
+		pendZs[pendCount] = z;
+		slotOf[id] = -2 - pendCount;
+		pendCount++;
+	}
+	
+	/**
+	 * Remove a point if it is there
+	 * @param id - Id of the point
+	 */
+	void remove(int id)
+	{
+		if (id >= slotOf.length || slotOf[id] == -1)
+		{
+			return;
+		}
+		int slot = slotOf[id];
+		slotOf[id] = -1;
+		if (stage != Stage.IDLE)
+		{
+			markDirty(id);
+		}
+		
+		if (slot >= 0)
+		{
+			removed[slot] = true;
+			removedCount++;
+			return;
+		}
+		
+		// Move the last pending point into the gap
+		int i = -2 - slot;
+		pendCount--;
+		if (i < pendCount)
+		{
+			pendIds[i] = pendIds[pendCount];
+			pendXs[i] = pendXs[pendCount];
+			pendZs[i] = pendZs[pendCount];
+			slotOf[pendIds[i]] = -2 - i;
+		}
+	}
+	
+	/**
+	 * Find the closest point.  The coordinates of what was found are 
+	 * available from {@link #getNearestX()} and {@link #getNearestZ()}.
+	 * @param x - X coordinate to search from
+	 * @param z - Z coordinate to search from
+	 * @return id of the closest point, or -1 if there are none
+	 */
+	int nearest(double x, double z)
+	{
+		bestId = -1;
+		bestDist = Double.POSITIVE_INFINITY;
+		
+		// Pending points first, so the tree search starts with a close
+		// point to beat and skips more of the tree
+		for ( int i = 0; i < pendCount; i++ )
+		{
+			double dx = pendXs[i] - x;
+			double dz = pendZs[i] - z;
+			double dist = dx * dx + dz * dz;
+			if (dist < bestDist)
+			{
+				bestDist = dist;
+				bestId = pendIds[i];
+				bestX = pendXs[i];
+				bestZ = pendZs[i];
+			}
+		}
+		
+		search(0, treeSize, true, x, z);
+		return bestId;
+	}
+	
+	/**
+	 * Have enough points been added or removed since the last rebuild to
+	 * slow lookups down?
+	 * @return true if it is worth calling {@link #rebuild()}
+	 */
+	boolean needsRebuild()
+	{
+		int limit = Math.max(PENDING_LIMIT, (int)Math.sqrt(treeSize));
+		return pendCount > limit || removedCount > treeSize / 2 + PENDING_LIMIT;
+	}
+	
+	/**
+	 * @return x coordinate of the last point found
+	 */
+	double getNearestX()
+	{
+		return bestX;
+	}
+	
+	/**
+	 * @return z coordinate of the last point found
+	 */
+	double getNearestZ()
+	{
+		return bestZ;
+	}
+	
+	/**
+	 * Search the subtree in [lo, hi).  Its root is in the middle.
+	 * @param lo - Start of the range
+	 * @param hi - End of the range
+	 * @param splitX - true if this level splits on x, false for z
+	 * @param x - X coordinate to search from
+	 * @param z - Z coordinate to search from
+	 */
+	private void search(int lo, int hi, boolean splitX, double x, double z)
+	{
+		if (lo >= hi)
+		{
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		
+		if (!removed[mid])
+		{
+			double dx = xs[mid] - x;
+			double dz = zs[mid] - z;
+			double dist = dx * dx + dz * dz;
+			if (dist < bestDist)
+			{
+				bestDist = dist;
+				bestId = ids[mid];
+				bestX = xs[mid];
+				bestZ = zs[mid];
+			}
+		}
+		
+		double diff = splitX ? x - xs[mid] : z - zs[mid];
+		if (diff < 0)
+		{
+			search(lo, mid, !splitX, x, z);
+			if (diff * diff < bestDist)
+			{
+				search(mid + 1, hi, !splitX, x, z);
+			}
+		}
+		else
+		{
+			search(mid + 1, hi, !splitX, x, z);
+			if (diff * diff < bestDist)
+			{
+				search(lo, mid, !splitX, x, z);
+			}
+		}
+	}
+	
+	/**
+	 * Rebuild the tree from all the live points, emptying the pending list
+	 * and dropping the removed points.  Finishes any rebuild already going.
+	 */
+	void rebuild()
+	{
+		if (stage == Stage.IDLE)
+		{
+			startRebuild();
+		}
+		while (!rebuildStep(Integer.MAX_VALUE))
+		{
+		}
+	}
+	
+	/**
+	 * @return true if a rebuild has been started and not finished
+	 */
+	boolean isRebuilding()
+	{
+		return stage != Stage.IDLE;
+	}
+	
+	/**
+	 * Start rebuilding in steps.  Lookups keep using the old tree until
+	 * the last step.
+	 */
+	void startRebuild()
+	{
+		int n = size();
+		if (n > nextIds.length)
+		{
+			int length = Math.max(n, nextIds.length * 2);
+			nextIds = new int[length];
+			nextXs = new double[length];
+			nextZs = new double[length];
+		}
+		if (dirty.length < slotOf.length)
+		{
+			dirty = new boolean[slotOf.length];
+		}
+		nextSize = 0;
+		copyNext = 0;
+		rangeCount = 0;
+		selecting = false;
+		partitioning = false;
+		stage = Stage.COPY;
+	}
+	
+	/**
+	 * Do some of the rebuild.  The last step swaps the new tree in.
+	 * @param work - Roughly how many points to copy or compare
+	 * @return true once the rebuild is done, or if none was started
+	 */
+	boolean rebuildStep(int work)
+	{
+		if (stage == Stage.COPY)
+		{
+			for ( ; copyNext < treeSize && work > 0; copyNext++, work-- )
+			{
+				if (!removed[copyNext])
+				{
+					nextIds[nextSize] = ids[copyNext];
+					nextXs[nextSize] = xs[copyNext];
+					nextZs[nextSize] = zs[copyNext];
+					nextSize++;
+				}
+			}
+			if (copyNext < treeSize)
+			{
+				return false;
+			}
+			copyPending();
+			pushRange(0, nextSize, true);
+			stage = Stage.BUILD;
+		}
+		while (stage == Stage.BUILD && work > 0)
+		{
+			if (!selecting)
+			{
+				if (rangeCount == 0)
+				{
+					startSlots();
+					break;
+				}
+				rangeCount -= 3;
+				selLo = ranges[rangeCount];
+				selHi = ranges[rangeCount + 1];
+				selSplitX = ranges[rangeCount + 2] != 0;
+				work--;
+				if (selHi - selLo <= 1)
+				{
+					continue;
+				}
+				selLeft = selLo;
+				selRight = selHi - 1;
+				selecting = true;
+			}
+			work = selectStep(work);
+		}
+		if (stage == Stage.SLOTS)
+		{
+			int length = nextSlotOf.length;
+			for ( ; slotNext < length + nextSize && work > 0; slotNext++, work-- )
+			{
+				if (slotNext < length)
+				{
+					nextSlotOf[slotNext] = -1;
+				}
+				else
+				{
+					int i = slotNext - length;
+					nextSlotOf[nextIds[i]] = i;
+				}
+			}
+			if (slotNext == length + nextSize)
+			{
+				finishRebuild();
+			}
+		}
+		return stage == Stage.IDLE;
+	}
+	
+	/**
+	 * The new tree is arranged.  Start working out where each id is in it.
+	 */
+	private void startSlots()
+	{
+		if (nextSlotOf.length < slotOf.length)
+		{
+			nextSlotOf = new int[slotOf.length];
+		}
+		slotNext = 0;
+		stage = Stage.SLOTS;
+	}
+	
+	/**
+	 * Copy the pending points that were there when the rebuild started
+	 */
+	private void copyPending()
+	{
+		int n = nextSize + pendCount;
+		if (n > nextIds.length)
+		{
+			nextIds = Arrays.copyOf(nextIds, n);
+			nextXs = Arrays.copyOf(nextXs, n);
+			nextZs = Arrays.copyOf(nextZs, n);
+		}
+		for ( int i = 0; i < pendCount; i++ )
+		{
+			if (!dirty[pendIds[i]])
+			{
+				nextIds[nextSize] = pendIds[i];
+				nextXs[nextSize] = pendXs[i];
+				nextZs[nextSize] = pendZs[i];
+				nextSize++;
+			}
+		}
+	}
+	
+	/**
+	 * Swap the new tree in.  Points put or removed since the rebuild 
+	 * started are marked removed in it, and those that are still there 
+	 * stay in the pending list.  Only those points are looked at, so this
+	 * doesn't take long however big the tree is.
+	 */
+	private void finishRebuild()
+	{
+		int[] oldIds = ids;
+		double[] oldXs = xs;
+		double[] oldZs = zs;
+		int[] oldSlotOf = slotOf;
+		ids = nextIds;
+		xs = nextXs;
+		zs = nextZs;
+		slotOf = nextSlotOf;
+		nextIds = oldIds;
+		nextXs = oldXs;
+		nextZs = oldZs;
+		nextSlotOf = oldSlotOf;
+		if (slotOf.length < nextSlotOf.length)
+		{
+			// Ids were put since the slots were worked out
+			int old = slotOf.length;
+			slotOf = Arrays.copyOf(slotOf, nextSlotOf.length);
+			Arrays.fill(slotOf, old, slotOf.length, -1);
+		}
+		
+		treeSize = nextSize;
+		removedCount = 0;
+		if (removed.length < treeSize)
+		{
+			removed = new boolean[ids.length];
+		}
+		Arrays.fill(removed, 0, treeSize, false);
+		for ( int i = 0; i < dirtyCount; i++ )
+		{
+			int id = dirtyIds[i];
+			int slot = slotOf[id];
+			if (slot >= 0)
+			{
+				removed[slot] = true;
+				removedCount++;
+				slotOf[id] = -1;
+			}
+		}
+		
+		int kept = 0;
+		for ( int i = 0; i < pendCount; i++ )
+		{
+			int id = pendIds[i];
+			if (dirty[id])
+			{
+				pendIds[kept] = id;
+				pendXs[kept] = pendXs[i];
+				pendZs[kept] = pendZs[i];
+				slotOf[id] = -2 - kept;
+				kept++;
+			}
+		}
+		pendCount = kept;
+		
+		clearDirty();
+		stage = Stage.IDLE;
+	}
+	
+	/**
+	 * Note that an id was put or removed while rebuilding
+	 * @param id - Id of the point
+	 */
+	private void markDirty(int id)
+	{
+		if (id >= dirty.length)
+		{
+			dirty = Arrays.copyOf(dirty, slotOf.length);
+		}
+		if (dirty[id])
+		{
+			return;
+		}
+		dirty[id] = true;
+		if (dirtyCount == dirtyIds.length)
+		{
+			dirtyIds = Arrays.copyOf(dirtyIds, dirtyCount * 2);
+		}
+		dirtyIds[dirtyCount++] = id;
+	}
+	
+	/**
+	 * Forget which ids were put or removed
+	 */
+	private void clearDirty()
+	{
+		for ( int i = 0; i < dirtyCount; i++ )
+		{
+			dirty[dirtyIds[i]] = false;
+		}
+		dirtyCount = 0;
+	}
+	
+	/**
+	 * Queue a range of the new tree to be arranged
+	 * @param lo - Start of the range
+	 * @param hi - End of the range
+	 * @param splitX - true to split on x, false for z
+	 */
+	private void pushRange(int lo, int hi, boolean splitX)
+	{
+		if (rangeCount == ranges.length)
+		{
+			ranges = Arrays.copyOf(ranges, rangeCount * 2);
+		}
+		ranges[rangeCount] = lo;
+		ranges[rangeCount + 1] = hi;
+		ranges[rangeCount + 2] = splitX ? 1 : 0;
+		rangeCount += 3;
+	}
+	
+	/**
+	 * Carry on with the quickselect that puts the median of the range in
+	 * the middle, smaller ones before it and larger ones after.  Once it is
+	 * there, each half is queued to be done the same way.  Splits three 
+	 * ways so lots of points on the same line don't slow it down.
+	 * @param work - Most points to compare
+	 * @return work left over
+	 */
+	private int selectStep(int work)
+	{
+		double[] key = selSplitX ? nextXs : nextZs;
+		int k = (selLo + selHi) >>> 1;
+		boolean done = false;
+		while (!done && work > 0)
+		{
+			if (!partitioning)
+			{
+				if (selLeft >= selRight)
+				{
+					done = true;
+					break;
+				}
+				pivot = key[(selLeft + selRight) >>> 1];
+				lt = selLeft;
+				gt = selRight;
+				next = selLeft;
+				partitioning = true;
+			}
+			
+			for ( ; next <= gt && work > 0; work-- )
+			{
+				if (key[next] < pivot)
+				{
+					swap(next++, lt++);
+				}
+				else if (key[next] > pivot)
+				{
+					swap(next, gt--);
+				}
+				else
+				{
+					next++;
+				}
+			}
+			if (next <= gt)
+			{
+				return work;
+			}
+			
+			partitioning = false;
+			if (k < lt)
+			{
+				selRight = lt - 1;
+			}
+			else if (k > gt)
+			{
+				selLeft = gt + 1;
+			}
+			else
+			{
+				done = true;
+			}
+		}
+		if (done)
+		{
+			selecting = false;
+			pushRange(k + 1, selHi, !selSplitX);
+			pushRange(selLo, k, !selSplitX);
+		}
+		return work;
+	}
+	
+	/**
+	 * Swap two points in the new tree
+	 * @param a - First position
+	 * @param b - Second position
+	 */
+	private void swap(int a, int b)
+	{
+		int id = nextIds[a];
+		nextIds[a] = nextIds[b];
+		nextIds[b] = id;
+		double x = nextXs[a];
+		nextXs[a] = nextXs[b];
+		nextXs[b] = x;
+		double z = nextZs[a];
+		nextZs[a] = nextZs[b];
+		nextZs[b] = z;
+	}
+}
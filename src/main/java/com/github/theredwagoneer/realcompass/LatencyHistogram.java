@@ -0,0 +1,146 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations in ns.
+ * 
+ * Buckets are powers of two split into four, so any value is off by at
+ * most 25%.  Recording is a couple of atomic adds and never allocates,
+ * so it is cheap enough to wrap every USB transfer.
+ * 
+ * @author theredwagoneer
+ *
+ */
+class LatencyHistogram {
+	/** Bits of each power of two used to pick a sub bucket */
+	private static final int SUB_BITS = 2;
+	
+	/** Sub buckets per power of two */
+	private static final int SUB = 1 << SUB_BITS;
+	
+	/** Enough buckets for any positive long */
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+	
+	/** Count in each bucket */
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	
+	/** Number of values recorded */
+	private final AtomicLong count = new AtomicLong();
+	
+	/** Sum of all values recorded */
+	private final AtomicLong total = new AtomicLong();
+	
+	/** Largest value recorded */
+	private final AtomicLong max = new AtomicLong();
+	
+	/**
+	 * Record a duration
+	 * @param nanos - Duration in ns
+	 */
+	void record(long nanos)
+	{
+		if (nanos < 0)
+		{
+			nanos = 0;
+		}
+		buckets.incrementAndGet(bucketOf(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		
+		long oldMax;
+		while (nanos > (oldMax = max.get()) && !max.compareAndSet(oldMax, nanos))
+		{
+			// Someone else raised the max.  Try again.
+		}
+	}
+	
+	/**
+	 * @return number of values recorded
+	 */
+	long getCount()
+	{
+		return count.get();
+	}
+	
+	/**
+	 * @return largest value recorded in ns
+	 */
+	long getMax()
+	{
+		return max.get();
+	}
+	
+	/**
+	 * @return mean of the values recorded in ns, or 0 if there are none
+	 */
+	long getMean()
+	{
+		long n = count.get();
+		return n == 0 ? 0 : total.get() / n;
+	}
+	
+	/**
+	 * Value that the given fraction of recorded values are at or below
+	 * @param fraction - 0 to 1, such as 0.99 for the 99th percentile
+	 * @return upper edge of the bucket holding the percentile in ns, or 0 
+	 * 			if there are no values
+	 */
+	long getPercentile(double fraction)
+	{
+		long n = count.get();
+		if (n == 0)
+		{
+			return 0;
+		}
+		
+		long wanted = (long)Math.ceil(fraction * n);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += buckets.get(i);
+			if (seen >= wanted)
+			{
+				return Math.min(lowerBound(i + 1) - 1, max.get());
+			}
+		}
+		return max.get();
+	}
+	
+	/**
+	 * Find the bucket for a value
+	 * @param value - value to bucket, not negative
+	 * @return bucket index
+	 */
+	private static int bucketOf(long value)
+	{
+		if (value < SUB)
+		{
+			return (int)value;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)((value >>> (exp - SUB_BITS)) & (SUB - 1));
+		return (exp - SUB_BITS + 1) * SUB + sub;
+	}
+	
+	/**
+	 * Smallest value that goes in a bucket
+	 * @param bucket - bucket index
+	 * @return lower edge of the bucket
+	 */
+	private static long lowerBound(int bucket)
+	{
+		if (bucket < SUB)
+		{
+			return bucket;
+		}
+		if (bucket >= BUCKETS)
+		{
+			return Long.MAX_VALUE;
+		}
+		int exp = bucket / SUB + SUB_BITS - 1;
+		long sub = bucket % SUB;
+		return (SUB + sub) << (exp - SUB_BITS);
+	}
+}
@@ -0,0 +1,326 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Finds where each location is in the json file without parsing them.
+ * 
+ * One quick pass over the bytes finds the start and end of every object
+ * in the top level array.  A location is only parsed when it is needed,
+ * and then on its own, so one bad entry doesn't take the rest down with
+ * it.  When every location is needed, they are all read in one pass
+ * instead.
+ * 
+ * @author theredwagoneer
+ *
+ */
+class LocationFileIndex {
+	/** The json file */
+	private final File file;
+	
+	/** Byte offset where each entry starts */
+	private long[] starts = new long[16];
+	
+	/** Length of each entry in bytes */
+	private int[] lengths = new int[16];
+	
+	/** Number of entries found */
+	private int count = 0;
+	
+	/** Number of top level values that weren't objects */
+	private int skipped = 0;
+	
+	/** What was wrong with the file, or null if nothing */
+	private String problem = null;
+	
+	/**
+	 * Constructor.  Scans the file.
+	 * @param file - The json file
+	 * @throws IOException if the file can't be read
+	 */
+	LocationFileIndex(File file) throws IOException
+	{
+		this.file = file;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file)))
+		{
+			scan(in);
+		}
+	}
+	
+	/**
+	 * @return number of entries found
+	 */
+	int size()
+	{
+		return count;
+	}
+	
+	/**
+	 * Describe anything that was wrong with the file
+	 * @return description, or null if the file looked fine
+	 */
+	String getProblem()
+	{
+		if (problem == null && skipped > 0)
+		{
+			return skipped + " entries in " + file.getName() + " were not locations and were skipped";
+		}
+		return problem;
+	}
+	
+	/**
+	 * Parse one entry
+	 * @param entry - Which entry
+	 * @return the location in it.  The record index is the entry number.
+	 * @throws IOException if the file can't be read
+	 * @throws JsonParseException if the entry isn't a valid location
+	 */
+	LocationRecord read(int entry) throws IOException
+	{
+		byte[] bytes = new byte[lengths[entry]];
+		try (RandomAccessFile in = new RandomAccessFile(file, "r"))
+		{
+			in.seek(starts[entry]);
+			in.readFully(bytes);
+		}
+		return parse(entry, bytes);
+	}
+	
+	/**
+	 * Parse every entry, reading the file once from start to end
+	 * @return the locations by entry.  Entries that aren't valid 
+	 * 			locations are null.
+	 * @throws IOException if the file can't be read
+	 */
+	LocationRecord[] readAll() throws IOException
+	{
+		LocationRecord[] records = new LocationRecord[count];
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+		{
+			long pos = 0;
+			for (int entry = 0; entry < count; entry++)
+			{
+				while (pos < starts[entry])
+				{
+					int skipped = in.skipBytes((int)Math.min(starts[entry] - pos, Integer.MAX_VALUE));
+					if (skipped <= 0)
+					{
+						throw new IOException(file.getName() + " ended early");
+					}
+					pos += skipped;
+				}
+				byte[] bytes = new byte[lengths[entry]];
+				in.readFully(bytes);
+				pos += bytes.length;
+				
+				try
+				{
+					records[entry] = parse(entry, bytes);
+				}
+				catch (IOException | JsonParseException e)
+				{
+					// Only this entry is bad.  The bytes are already read.
+					records[entry] = null;
+				}
+			}
+		}
+		return records;
+	}
+	
+	/**
+	 * Parse the bytes of one entry
+	 * @param entry - Which entry
+	 * @param bytes - The entry's bytes
+	 * @return the location in it
+	 * @throws IOException if the bytes can't be read
+	 * @throws JsonParseException if the entry isn't a valid location
+	 */
+	private static LocationRecord parse(int entry, byte[] bytes) throws IOException
+	{
+		double x = 0;
+		double z = 0;
+		boolean hasSavedLocation = false;
+		boolean writeProtect = false;
+		String locationText = null;
+		
+		try (JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8)))
+		{
+			reader.beginObject();
+			while (reader.hasNext())
+			{
+				switch (reader.nextName())
+				{
+				case "xsaved":
+					x = reader.nextDouble();
+					break;
+				case "zsaved":
+					z = reader.nextDouble();
+					break;
+				case "hasSavedLocation":
+					hasSavedLocation = reader.nextBoolean();
+					break;
+				case "writeProtect":
+					writeProtect = reader.nextBoolean();
+					break;
+				case "locationText":
+					locationText = reader.nextString();
+					break;
+				default:
+					reader.skipValue();
+					break;
+				}
+			}
+			reader.endObject();
+		}
+		catch (IllegalStateException | NumberFormatException e)
+		{
+			throw new JsonParseException(e);
+		}
+		
+		return new LocationRecord(entry, x, z, hasSavedLocation, writeProtect, locationText);
+	}
+	
+	/**
+	 * Find the objects in the top level array.  Keeps track of strings so
+	 * brackets inside names don't count.  Multi-byte UTF-8 characters never
+	 * look like brackets or quotes, so bytes are fine.
+	 * @param in - The file contents
+	 * @throws IOException
+	 */
+	private void scan(InputStream in) throws IOException
+	{
+		long pos = -1;
+		int depth = 0;
+		boolean inString = false;
+		boolean escaped = false;
+		boolean sawArray = false;
+		long start = 0;
+		boolean inObject = false;
+		int c;
+		
+		while ((c = in.read()) != -1)
+		{
+			pos++;
+			if (inString)
+			{
+				if (escaped)
+				{
+					escaped = false;
+				}
+				else if (c == '\\')
+				{
+					escaped = true;
+				}
+				else if (c == '"')
+				{
+					inString = false;
+				}
+				continue;
+			}
+			
+			switch (c)
+			{
+			case '"':
+				inString = true;
+				break;
+			case '[':
+			case '{':
+				if (depth == 0)
+				{
+					if (c != '[')
+					{
+						problem = file.getName() + " is not a list of locations";
+						return;
+					}
+					sawArray = true;
+				}
+				else if (depth == 1)
+				{
+					if (c == '{')
+					{
+						start = pos;
+						inObject = true;
+					}
+					else
+					{
+						skipped++;
+					}
+				}
+				depth++;
+				break;
+			case ']':
+			case '}':
+				depth--;
+				if (depth == 1 && inObject && c == '}')
+				{
+					add(start, pos + 1 - start);
+					inObject = false;
+				}
+				if (depth == 0)
+				{
+					return;
+				}
+				if (depth < 0)
+				{
+					problem = file.getName() + " has unbalanced brackets";
+					return;
+				}
+				break;
+			default:
+				if (depth == 1 && c > ' ' && c != ',')
+				{
+					// A bare value in the list.  Only count the start of it.
+					if (!inObject)
+					{
+						skipped++;
+						inObject = true;
+					}
+				}
+				else if (depth == 1 && c == ',')
+				{
+					inObject = false;
+				}
+				break;
+			}
+		}
+		
+		if (!sawArray)
+		{
+			problem = file.getName() + " is empty";
+		}
+		else
+		{
+			problem = file.getName() + " ended early.  Only " + count + " locations could be found";
+		}
+	}
+	
+	/**
+	 * Remember an entry
+	 * @param start - Byte offset of the entry
+	 * @param length - Length in bytes
+	 */
+	private void add(long start, long length)
+	{
+		if (count == starts.length)
+		{
+			starts = Arrays.copyOf(starts, count * 2);
+			lengths = Arrays.copyOf(lengths, count * 2);
+		}
+		starts[count] = start;
+		lengths[count] = (int)length;
+		count++;
+	}
+}
@@ -0,0 +1,480 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append only binary store for saved locations.
+ * 
+ * Every save appends one fixed size record, so saving doesn't get slower
+ * as the list grows.  A name too long for one record is carried on in 
+ * extra records written just before it, so names are never cut short.
+ * Loading reads the file in large blocks and keeps the newest record for
+ * each index.  The file is never mapped, since a mapped file can't be 
+ * replaced on some systems, such as Windows.  Once the file holds a lot 
+ * of overwritten records it is compacted down to one copy of each 
+ * location.
+ * 
+ * The header also remembers the modified time of the JSON file the 
+ * journal was last in step with, so hand edits to the JSON can be 
+ * noticed and imported.
+ * 
+ * Only one thread may use a journal at a time.
+ * 
+ * @author theredwagoneer
+ *
+ */
+class LocationJournal {
+	/** Marks the file as a location journal */
+	private static final int MAGIC = 0x52434C4A;
+	
+	/** Format version */
+	private static final int VERSION = 1;
+	
+	/** Magic, version, JSON stamp */
+	private static final int HEADER_SIZE = 16;
+	
+	/** Where the JSON stamp lives in the header */
+	private static final int STAMP_OFFSET = 8;
+	
+	/** Bytes of location name that fit in one record */
+	static final int NAME_BYTES_PER_RECORD = 72;
+	
+	/** Index, flags, name length, padding, x, z, name */
+	static final int RECORD_SIZE = 4 + 1 + 1 + 2 + 8 + 8 + NAME_BYTES_PER_RECORD;
+	
+	/** Flag bit for hasSavedLocation */
+	private static final int FLAG_SAVED = 1;
+	
+	/** Flag bit for writeProtect */
+	private static final int FLAG_PROTECT = 2;
+	
+	/** Flag bit for a location whose name starts in the name records just
+	 * before it */
+	private static final int FLAG_LONG_NAME = 4;
+	
+	/** Flag bit for the first name record of a long name.  Name records
+	 * have the index -1 - the location's index, so older readers skip them. */
+	private static final int FLAG_FIRST_PART = 8;
+	
+	/** Compact once there are this many more records than locations */
+	private static final int COMPACT_SLACK = 256;
+	
+	/** Records read from the file at a time when loading */
+	private static final int LOAD_BLOCK_RECORDS = 4096;
+	
+	/** Journal file */
+	private final File file;
+	
+	/** Open journal file */
+	private RandomAccessFile raf;
+	
+	/** Channel of the open journal file */
+	private FileChannel channel;
+	
+	/** Number of records in the file */
+	private long recordCount = 0;
+	
+	/** Length of the location list in the file */
+	private int liveCount = 0;
+	
+	/** Number of records the locations would take if compacted */
+	private long liveRecords = 0;
+	
+	/** Modified time of the JSON file this journal was last in step with */
+	private long jsonStamp = 0;
+	
+	/** Don't try compacting again until there are more records than this.
+	 * Raised when a compaction fails, so it isn't retried on every save. */
+	private long compactFloor = 0;
+	
+	/** Reused buffer for writing one location.  Grows for long names. */
+	private ByteBuffer recordBuffer = ByteBuffer.allocate(RECORD_SIZE);
+	
+	/**
+	 * Constructor.  Opens the journal, creating it if needed.  A file that
+	 * isn't a journal, or is a newer version, is started over.
+	 * @param file - Journal file
+	 * @throws IOException
+	 */
+	LocationJournal(File file) throws IOException
+	{
+		this.file = file;
+		open();
+	}
+	
+	/**
+	 * Read all the locations.  Uses the newest record for each index.
+	 * @return locations by index.  Indexes never saved are null.
+	 * @throws IOException
+	 */
+	List<LocationRecord> load() throws IOException
+	{
+		List<LocationRecord> records = new ArrayList<LocationRecord>();
+		ByteBuffer block = ByteBuffer.allocate((int)Math.min(recordCount, LOAD_BLOCK_RECORDS) * RECORD_SIZE);
+		long position = HEADER_SIZE;
+		long left = recordCount;
+		
+		// Start of a long name, from the name records read so far
+		byte[] parts = new byte[NAME_BYTES_PER_RECORD];
+		int partsLength = 0;
+		int partsIndex = -1;
+		
+		while (left > 0)
+		{
+			int count = (int)Math.min(left, LOAD_BLOCK_RECORDS);
+			block.clear();
+			block.limit(count * RECORD_SIZE);
+			while (block.hasRemaining())
+			{
+				if (channel.read(block, position + block.position()) < 0)
+				{
+					throw new IOException("Location journal ended early");
+				}
+			}
+			
+			for (int offset = 0; offset < count * RECORD_SIZE; offset += RECORD_SIZE)
+			{
+				int index = block.getInt(offset);
+				int flags = block.get(offset + 4);
+				if (index < 0)
+				{
+					// Part of a long name.  Only the parts written since the
+					// first one belong to the next record for that index.
+					int owner = -1 - index;
+					if ((flags & FLAG_FIRST_PART) != 0 || owner != partsIndex)
+					{
+						partsIndex = owner;
+						partsLength = 0;
+					}
+					int length = Math.min(block.get(offset + 5) & 0xFF, NAME_BYTES_PER_RECORD);
+					if (partsLength + length > parts.length)
+					{
+						parts = Arrays.copyOf(parts, 2 * parts.length);
+					}
+					for (int i = 0; i < length; i++)
+					{
+						parts[partsLength++] = block.get(offset + 24 + i);
+					}
+					continue;
+				}
+				while (records.size() <= index)
+				{
+					records.add(null);
+				}
+				boolean longName = (flags & FLAG_LONG_NAME) != 0 && partsIndex == index;
+				records.set(index, readRecord(block, offset, parts, longName ? partsLength : 0));
+				partsIndex = -1;
+				partsLength = 0;
+			}
+			position += count * RECORD_SIZE;
+			left -= count;
+		}
+		liveCount = records.size();
+		liveRecords = 0;
+		for (LocationRecord record : records)
+		{
+			if (record != null)
+			{
+				liveRecords += recordsFor(nameBytes(record));
+			}
+		}
+		return records;
+	}
+	
+	/**
+	 * Add a record to the end of the journal.  Compacts if needed.
+	 * @param record - Location to save
+	 * @throws IOException
+	 */
+	void append(LocationRecord record) throws IOException
+	{
+		int written = writeRecord(record);
+		long position = HEADER_SIZE + recordCount * RECORD_SIZE;
+		while (recordBuffer.hasRemaining())
+		{
+			position += channel.write(recordBuffer, position);
+		}
+		recordCount += written;
+		
+		// Live count is really the length of the list, which only grows.
+		// A replaced location is counted as the same size as before.
+		if (record.getIndex() >= liveCount)
+		{
+			liveCount = record.getIndex() + 1;
+			liveRecords += written;
+		}
+		
+		if (recordCount > 2L * liveRecords + COMPACT_SLACK && recordCount > compactFloor)
+		{
+			compact();
+		}
+	}
+	
+	/**
+	 * Replace the whole journal with these records
+	 * @param records - Locations to keep.  Nulls are skipped.
+	 * @param newJsonStamp - Modified time of the JSON file these came from
+	 * @throws IOException
+	 */
+	void rewrite(List<LocationRecord> records, long newJsonStamp) throws IOException
+	{
+		File tempFile = new File(file.getPath() + ".tmp");
+		long written;
+		
+		try (RandomAccessFile out = new RandomAccessFile(tempFile, "rw"))
+		{
+			out.setLength(0);
+			FileChannel outChannel = out.getChannel();
+			
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putLong(newJsonStamp).flip();
+			outChannel.write(header);
+			
+			written = 0;
+			for (LocationRecord record : records)
+			{
+				if (record != null)
+				{
+					written += writeRecord(record);
+					while (recordBuffer.hasRemaining())
+					{
+						outChannel.write(recordBuffer);
+					}
+				}
+			}
+			outChannel.force(true);
+		}
+		
+		close();
+		try
+		{
+			Files.move(tempFile.toPath(), file.toPath(), 
+					StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally
+		{
+			open();
+		}
+		liveCount = records.size();
+		liveRecords = written;
+	}
+	
+	/**
+	 * Modified time of the JSON file this journal was last in step with
+	 * @return the time, or 0 if never
+	 */
+	long getJsonStamp()
+	{
+		return jsonStamp;
+	}
+	
+	/**
+	 * Remember that the journal is in step with the JSON file
+	 * @param stamp - Modified time of the JSON file
+	 * @throws IOException
+	 */
+	void setJsonStamp(long stamp) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.putLong(stamp).flip();
+		channel.write(buffer, STAMP_OFFSET);
+		jsonStamp = stamp;
+	}
+	
+	/**
+	 * Close the journal file
+	 */
+	void close()
+	{
+		try 
+		{
+			if (raf != null)
+			{
+				raf.close();
+			}
+		} 
+		catch (IOException e) 
+		{
+			e.printStackTrace();
+		}
+		raf = null;
+		channel = null;
+	}
+	
+	/**
+	 * Open the file and read the header.  Drops any partly written record
+	 * at the end, such as from a crash mid-save.
+	 * @throws IOException
+	 */
+	private void open() throws IOException
+	{
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		if (size >= HEADER_SIZE)
+		{
+			channel.read(header, 0);
+			header.flip();
+		}
+		
+		if (size < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+		{
+			channel.truncate(0);
+			header.clear();
+			header.putInt(MAGIC).putInt(VERSION).putLong(0).flip();
+			channel.write(header, 0);
+			size = HEADER_SIZE;
+		}
+		
+		jsonStamp = header.getLong(STAMP_OFFSET);
+		recordCount = (size - HEADER_SIZE) / RECORD_SIZE;
+		if (HEADER_SIZE + recordCount * RECORD_SIZE != size)
+		{
+			channel.truncate(HEADER_SIZE + recordCount * RECORD_SIZE);
+		}
+		liveCount = 0;
+		liveRecords = 0;
+	}
+	
+	/**
+	 * Rewrite the journal with one record per location
+	 * @throws IOException
+	 */
+	private void compact() throws IOException
+	{
+		List<LocationRecord> records = load();
+		try
+		{
+			rewrite(records, jsonStamp);
+		}
+		catch (IOException e)
+		{
+			// Carry on appending, but don't try again until the file has
+			// grown by as much again, or every save would redo the load.
+			e.printStackTrace();
+			compactFloor = 2 * recordCount;
+		}
+	}
+	
+	/**
+	 * Decode one record
+	 * @param buffer - Buffer holding the record
+	 * @param offset - Where the record starts
+	 * @param head - Start of the name, from the name records before it
+	 * @param headLength - Number of bytes of head to use
+	 * @return the location
+	 */
+	static LocationRecord readRecord(ByteBuffer buffer, int offset, byte[] head, int headLength)
+	{
+		int index = buffer.getInt(offset);
+		int flags = buffer.get(offset + 4);
+		int nameLength = Math.min(buffer.get(offset + 5) & 0xFF, NAME_BYTES_PER_RECORD);
+		double x = buffer.getDouble(offset + 8);
+		double z = buffer.getDouble(offset + 16);
+		
+		byte[] name = Arrays.copyOf(head, headLength + nameLength);
+		for (int i = 0; i < nameLength; i++)
+		{
+			name[headLength + i] = buffer.get(offset + 24 + i);
+		}
+		
+		return new LocationRecord(index, x, z, (flags & FLAG_SAVED) != 0, (flags & FLAG_PROTECT) != 0,
+				new String(name, StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Encode one location into recordBuffer, ready to write.  A long name
+	 * goes out in name records first, with the location record last.
+	 * @param record - Location to encode
+	 * @return number of records encoded
+	 */
+	private int writeRecord(LocationRecord record)
+	{
+		byte[] name = nameBytes(record);
+		int count = recordsFor(name);
+		if (recordBuffer.capacity() < count * RECORD_SIZE)
+		{
+			recordBuffer = ByteBuffer.allocate(count * RECORD_SIZE);
+		}
+		recordBuffer.clear();
+		
+		int done = 0;
+		for (int part = 0; part < count - 1; part++)
+		{
+			putRecord(recordBuffer, -1 - record.getIndex(), part == 0 ? FLAG_FIRST_PART : 0, 0, 0, 
+					name, done, NAME_BYTES_PER_RECORD);
+			done += NAME_BYTES_PER_RECORD;
+		}
+		
+		int flags = (record.hasSavedLocation() ? FLAG_SAVED : 0) | (record.isWriteProtected() ? FLAG_PROTECT : 0) |
+					(count > 1 ? FLAG_LONG_NAME : 0);
+		putRecord(recordBuffer, record.getIndex(), flags, record.getX(), record.getZ(), 
+				name, done, name.length - done);
+		recordBuffer.flip();
+		return count;
+	}
+	
+	/**
+	 * Encode one fixed size record
+	 * @param buffer - Buffer to add it to
+	 * @param index - Index field
+	 * @param flags - Flag bits
+	 * @param x - Saved x position
+	 * @param z - Saved z position
+	 * @param name - Name bytes
+	 * @param from - First name byte in this record
+	 * @param length - Number of name bytes in this record
+	 */
+	private static void putRecord(ByteBuffer buffer, int index, int flags, double x, double z, 
+			byte[] name, int from, int length)
+	{
+		int end = buffer.position() + RECORD_SIZE;
+		buffer.putInt(index);
+		buffer.put((byte)flags);
+		buffer.put((byte)length);
+		buffer.putShort((short)0);
+		buffer.putDouble(x);
+		buffer.putDouble(z);
+		buffer.put(name, from, length);
+		while (buffer.position() < end)
+		{
+			buffer.put((byte)0);
+		}
+	}
+	
+	/**
+	 * @param record - Location
+	 * @return its name as UTF-8
+	 */
+	private static byte[] nameBytes(LocationRecord record)
+	{
+		String text = record.getLocationText() == null ? "" : record.getLocationText();
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @param name - Name as UTF-8
+	 * @return number of records a location with this name takes
+	 */
+	private static int recordsFor(byte[] name)
+	{
+		return Math.max(1, (name.length + NAME_BYTES_PER_RECORD - 1) / NAME_BYTES_PER_RECORD);
+	}
+}
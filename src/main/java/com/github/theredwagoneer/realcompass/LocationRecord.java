@@ -0,0 +1,66 @@
+package com.github.theredwagoneer.realcompass;
+
+/**
+ * Plain copy of one saved location, for handing to a location store.
+ * 
+ * @author theredwagoneer
+ *
+ */
+final class LocationRecord {
+	/** Position of the location in the list */
+	private final int index;
+	private final double x;
+	private final double z;
+	private final boolean hasSavedLocation;
+	private final boolean writeProtect;
+	private final String locationText;
+	
+	/**
+	 * Constructor
+	 * @param index - Position of the location in the list
+	 * @param x - Saved x position
+	 * @param z - Saved z position
+	 * @param hasSavedLocation - True if a location has been saved
+	 * @param writeProtect - True if the location may not be overwritten
+	 * @param locationText - Name of the location
+	 */
+	LocationRecord(int index, double x, double z, boolean hasSavedLocation, boolean writeProtect, String locationText)
+	{
+		this.index = index;
+		this.x = x;
+		this.z = z;
+		this.hasSavedLocation = hasSavedLocation;
+		this.writeProtect = writeProtect;
+		this.locationText = locationText;
+	}
+	
+	int getIndex()
+	{
+		return index;
+	}
+	
+	double getX()
+	{
+		return x;
+	}
+	
+	double getZ()
+	{
+		return z;
+	}
+	
+	boolean hasSavedLocation()
+	{
+		return hasSavedLocation;
+	}
+	
+	boolean isWriteProtected()
+	{
+		return writeProtect;
+	}
+	
+	String getLocationText()
+	{
+		return locationText;
+	}
+}
@@ -0,0 +1,215 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+
+/**
+ * Writes the location file in the background so saving never holds up
+ * the game thread.
+ * 
+ * Writes are queued with a key, and only the newest write for each key 
+ * matters.  If several saves of the same thing come in while a write is 
+ * in progress, they collapse into one write of the latest data.
+ * Whole file writes go to a temporary file that is then renamed over the 
+ * real one, so a crash mid-write can't leave a half written file.
+ * 
+ * @author theredwagoneer
+ *
+ */
+class LocationSaver {
+	/** Gson instance to serialize with */
+	private final Gson gson;
+	
+	/** Json file to save to */
+	private final File file;
+	
+	/** Temporary file written before the rename */
+	private final File tempFile;
+	
+	/** Writes waiting to run, oldest first.  Guarded by this. */
+	private final Map<Object, Runnable> pending = new LinkedHashMap<Object, Runnable>();
+	
+	/** True while a write is in progress.  Guarded by this. */
+	private boolean writing = false;
+	
+	/** True once closed.  Guarded by this. */
+	private boolean closed = false;
+	
+	/** Makes sure the last save gets written if the game exits */
+	private final Thread shutdownHook = new Thread(this::flush, "Compass Location Flush");
+	
+	/**
+	 * Constructor.  Starts the background thread.
+	 * @param gson - Gson instance to serialize with
+	 * @param file - Json file to save to
+	 */
+	LocationSaver(Gson gson, File file)
+	{
+		this.gson = gson;
+		this.file = file;
+		this.tempFile = new File(file.getPath() + ".tmp");
+		
+		Thread worker = new Thread(this::run, "Compass Location Saver");
+		worker.setDaemon(true);
+		worker.setPriority(Thread.MIN_PRIORITY);
+		worker.start();
+		
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+	
+	/**
+	 * Ask for data to be saved to the json file.  Returns right away.
+	 * @param data - Gets the data to serialize.  Called in the background
+	 * 			when the write runs, so the game thread doesn't pay for it.
+	 */
+	void save(Supplier<?> data)
+	{
+		submit(file, () -> writeJson(data.get()));
+	}
+	
+	/**
+	 * Queue a write to run in the background.  Returns right away.
+	 * @param key - Replaces any write with the same key that hasn't run yet
+	 * @param write - The write
+	 */
+	synchronized void submit(Object key, Runnable write)
+	{
+		pending.put(key, write);
+		notifyAll();
+	}
+	
+	/**
+	 * Wait until everything asked for has been written
+	 */
+	synchronized void flush()
+	{
+		boolean interrupted = false;
+		while (!pending.isEmpty() || writing)
+		{
+			try 
+			{
+				wait();
+			} 
+			catch (InterruptedException e) 
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Write anything outstanding and stop the background thread
+	 */
+	void close()
+	{
+		flush();
+		synchronized (this)
+		{
+			closed = true;
+			notifyAll();
+		}
+		try
+		{
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		}
+		catch (IllegalStateException e)
+		{
+			// Already shutting down.  The hook is running or has run.
+		}
+	}
+	
+	/**
+	 * Background loop.  Waits for writes and runs them oldest first.
+	 */
+	private void run()
+	{
+		while (true)
+		{
+			Runnable write;
+			synchronized (this)
+			{
+				while (pending.isEmpty() && !closed)
+				{
+					try 
+					{
+						wait();
+					} 
+					catch (InterruptedException e) 
+					{
+						// Swallow.
+					}
+				}
+				if (pending.isEmpty())
+				{
+					return;
+				}
+				Iterator<Runnable> oldest = pending.values().iterator();
+				write = oldest.next();
+				oldest.remove();
+				writing = true;
+			}
+			
+			try
+			{
+				write.run();
+			}
+			catch (RuntimeException e)
+			{
+				e.printStackTrace();
+			}
+			
+			synchronized (this)
+			{
+				writing = false;
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Write to the temporary file and rename it over the real json file.
+	 * Only call from a write running in the background.
+	 * @param data - Data to serialize
+	 */
+	void writeJson(Object data)
+	{
+		try 
+		{
+			try (Writer out = new BufferedWriter(new FileWriter(tempFile)))
+			{
+				gson.toJson(data, out);
+			}
+			
+			try
+			{
+				Files.move(tempFile.toPath(), file.toPath(), 
+						StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (AtomicMoveNotSupportedException e)
+			{
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} 
+		catch (JsonIOException | IOException e) 
+		{
+			e.printStackTrace();
+		}
+	}
+}
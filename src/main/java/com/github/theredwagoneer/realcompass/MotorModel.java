@@ -0,0 +1,261 @@
+package com.github.theredwagoneer.realcompass;
+
+/**
+ * Local model of where the motor is.
+ * 
+ * The TIC moves toward the last commanded target using the speed and
+ * acceleration limits we gave it.  If we do the same math here, we know 
+ * roughly where the motor is without asking over USB.  The model is
+ * re-synced with the real position every so often to keep it honest.
+ * 
+ * All units are microsteps and seconds.
+ * 
+ * @author theredwagoneer
+ *
+ */
+class MotorModel {
+	/** Size of each integration step in seconds */
+	private static final double STEP_S = 0.001;
+	
+	/** After this long without a new command, a move is surely finished */
+	private static final double SETTLE_LIMIT_S = 10.0;
+	
+	/** Maximum speed in microsteps per second */
+	private final double maxSpeed;
+	
+	/** Maximum acceleration in microsteps per second squared */
+	private final double maxAccel;
+	
+	/** Maximum deceleration in microsteps per second squared */
+	private final double maxDecel;
+	
+	/** Modeled position in microsteps */
+	private double position = 0;
+	
+	/** Modeled velocity in microsteps per second */
+	private double velocity = 0;
+	
+	/** Last commanded target position */
+	private long target = 0;
+	
+	/** True if we are running at a target velocity instead of to a position */
+	private boolean velocityMode = false;
+	
+	/** Last commanded target velocity in microsteps per second */
+	private double targetVelocity = 0;
+	
+	/** Time the model was last advanced to */
+	private long lastNanos = 0;
+	
+	/** False until the model has been synced with the real position */
+	private boolean synced = false;
+	
+	/**
+	 * Constructor
+	 * @param maxSpeed - Maximum speed in microsteps per second
+	 * @param maxAccel - Maximum acceleration in microsteps per second squared
+	 * @param maxDecel - Maximum deceleration in microsteps per second squared
+	 */
+	MotorModel(double maxSpeed, double maxAccel, double maxDecel)
+	{
+		this.maxSpeed = maxSpeed;
+		this.maxAccel = maxAccel;
+		this.maxDecel = maxDecel;
+	}
+	
+	/**
+	 * Constructor using the limits in the compass motor settings
+	 */
+	MotorModel()
+	{
+		this(CompassConst.MAX_SPEED_PER_S, CompassConst.MAX_ACCEL_PER_S2, CompassConst.MAX_DECEL_PER_S2);
+	}
+	
+	/**
+	 * Is the model trustworthy?
+	 * @return true if the model has been synced since it was last invalidated
+	 */
+	boolean isSynced()
+	{
+		return synced;
+	}
+	
+	/**
+	 * Forget what we know.  The next user should re-sync from the TIC.
+	 */
+	void invalidate()
+	{
+		synced = false;
+	}
+	
+	/**
+	 * Take the real position from the TIC.  The target is assumed to be
+	 * unchanged.
+	 * @param realPosition - Position read from the TIC
+	 * @param nowNanos - Time of the read
+	 */
+	void sync(long realPosition, long nowNanos)
+	{
+		if (!synced)
+		{
+			// We know nothing about the motion, so assume it is where it was told to be.
+			target = realPosition;
+			velocity = 0;
+			velocityMode = false;
+		}
+		position = realPosition;
+		lastNanos = nowNanos;
+		synced = true;
+	}
+	
+	/**
+	 * Record a new target position sent to the TIC
+	 * @param newTarget - Target position in microsteps
+	 * @param nowNanos - Time the command was sent
+	 */
+	void commandPosition(long newTarget, long nowNanos)
+	{
+		advance(nowNanos);
+		target = newTarget;
+		velocityMode = false;
+	}
+	
+	/**
+	 * Record a new target velocity sent to the TIC
+	 * @param newVelocity - Target velocity in microsteps per second
+	 * @param nowNanos - Time the command was sent
+	 */
+	void commandVelocity(double newVelocity, long nowNanos)
+	{
+		advance(nowNanos);
+		targetVelocity = Math.max(-maxSpeed, Math.min(maxSpeed, newVelocity));
+		velocityMode = true;
+	}
+	
+	/**
+	 * Stop dead and call the current position something else
+	 * @param newPosition - New position in microsteps
+	 * @param nowNanos - Time of the halt
+	 */
+	void halt(long newPosition, long nowNanos)
+	{
+		invalidate();
+		sync(newPosition, nowNanos);
+	}
+	
+	/**
+	 * Modeled position
+	 * @param nowNanos - Time to get the position for
+	 * @return position in microsteps
+	 */
+	long getPosition(long nowNanos)
+	{
+		advance(nowNanos);
+		return Math.round(position);
+	}
+	
+	/**
+	 * Modeled velocity
+	 * @param nowNanos - Time to get the velocity for
+	 * @return velocity in microsteps per second
+	 */
+	double getVelocity(long nowNanos)
+	{
+		advance(nowNanos);
+		return velocity;
+	}
+	
+	/**
+	 * Last commanded target
+	 * @return target position in microsteps
+	 */
+	long getTarget()
+	{
+		return target;
+	}
+	
+	/**
+	 * Move the model forward in time.
+	 * @param nowNanos - Time to move to
+	 */
+	private void advance(long nowNanos)
+	{
+		double dt = (nowNanos - lastNanos) / 1e9;
+		lastNanos = nowNanos;
+		
+		if (dt <= 0)
+		{
+			return;
+		}
+		
+		if (dt > SETTLE_LIMIT_S)
+		{
+			if (velocityMode)
+			{
+				velocity = targetVelocity;
+				position += velocity * dt;
+			}
+			else
+			{
+				position = target;
+				velocity = 0;
+			}
+			return;
+		}
+		
+		while (dt > 0)
+		{
+			double step = Math.min(dt, STEP_S);
+			step(step);
+			dt -= step;
+		}
+	}
+	
+	/**
+	 * Single integration step in position mode.  Heads for the target at the fastest speed 
+	 * from which we can still brake in time, like the TIC does.
+	 * @param dt - Step size in seconds
+	 */
+	private void step(double dt)
+	{
+		if (velocityMode)
+		{
+			stepVelocity(dt);
+			return;
+		}
+		
+		double distance = target - position;
+		
+		if (Math.abs(distance) < 0.5 && Math.abs(velocity) < maxDecel * dt)
+		{
+			position = target;
+			velocity = 0;
+			return;
+		}
+		
+		double desired = Math.min(maxSpeed, Math.sqrt(2 * maxDecel * Math.abs(distance)));
+		desired = Math.copySign(desired, distance);
+		
+		// Speeding up uses the accel limit, slowing down or reversing uses decel
+		boolean speedingUp = (desired * velocity >= 0) && (Math.abs(desired) > Math.abs(velocity));
+		double maxChange = (speedingUp ? maxAccel : maxDecel) * dt;
+		double change = Math.max(-maxChange, Math.min(maxChange, desired - velocity));
+		
+		velocity += change;
+		position += velocity * dt;
+	}
+	
+	/**
+	 * Single integration step in velocity mode.  Ramps to the target velocity.
+	 * @param dt - Step size in seconds
+	 */
+	private void stepVelocity(double dt)
+	{
+		boolean speedingUp = (targetVelocity * velocity >= 0) && (Math.abs(targetVelocity) > Math.abs(velocity));
+		double maxChange = (speedingUp ? maxAccel : maxDecel) * dt;
+		double change = Math.max(-maxChange, Math.min(maxChange, targetVelocity - velocity));
+		
+		velocity += change;
+		position += velocity * dt;
+	}
+}
@@ -0,0 +1,104 @@
+package com.github.theredwagoneer.realcompass;
+
+/**
+ * The motor controller's variables as last read.
+ * 
+ * The compass reads each variable at most once per update, and only the
+ * ones it needs that update, then works from this copy.  javatic reads
+ * one variable per USB transfer, so reading them all every time would
+ * cost a round trip each.  It is also read by the debug overlay, so the
+ * fields are volatile.
+ * 
+ * @author theredwagoneer
+ *
+ */
+class MotorSnapshot {
+	/** Position in microsteps */
+	private volatile long position = 0;
+	
+	/** Velocity in microsteps per 10000 s */
+	private volatile long velocity = 0;
+	
+	/** Time the position was read in ns */
+	private volatile long positionNanos = 0;
+	
+	/** Time the velocity was read in ns */
+	private volatile long velocityNanos = 0;
+	
+	/** False until the position is read, and after it goes stale */
+	private volatile boolean positionValid = false;
+	
+	/** False until the velocity is read, and after it goes stale */
+	private volatile boolean velocityValid = false;
+	
+	/**
+	 * Fill in the position
+	 * @param position - Position in microsteps
+	 * @param nowNanos - Time it was read in ns
+	 */
+	void setPosition(long position, long nowNanos)
+	{
+		this.position = position;
+		positionNanos = nowNanos;
+		positionValid = true;
+	}
+	
+	/**
+	 * Fill in the velocity
+	 * @param velocity - Velocity in microsteps per 10000 s
+	 * @param nowNanos - Time it was read in ns
+	 */
+	void setVelocity(long velocity, long nowNanos)
+	{
+		this.velocity = velocity;
+		velocityNanos = nowNanos;
+		velocityValid = true;
+	}
+	
+	/**
+	 * Throw it away so the next use reads it again
+	 */
+	void invalidate()
+	{
+		positionValid = false;
+		velocityValid = false;
+	}
+	
+	/**
+	 * Can the position still be used?
+	 * @param nowNanos - Time now in ns
+	 * @param maxAgeNanos - Oldest it can be in ns
+	 * @return true if read recently enough
+	 */
+	boolean isPositionFresh(long nowNanos, long maxAgeNanos)
+	{
+		return positionValid && nowNanos - positionNanos <= maxAgeNanos;
+	}
+	
+	/**
+	 * Can the velocity still be used?
+	 * @param nowNanos - Time now in ns
+	 * @param maxAgeNanos - Oldest it can be in ns
+	 * @return true if read recently enough
+	 */
+	boolean isVelocityFresh(long nowNanos, long maxAgeNanos)
+	{
+		return velocityValid && nowNanos - velocityNanos <= maxAgeNanos;
+	}
+	
+	/**
+	 * @return position in microsteps
+	 */
+	long getPosition()
+	{
+		return position;
+	}
+	
+	/**
+	 * @return velocity in microsteps per 10000 s
+	 */
+	long getVelocity()
+	{
+		return velocity;
+	}
+}
@@ -0,0 +1,142 @@
+package com.github.theredwagoneer.realcompass;
+
+/**
+ * Picks which of the equivalent motor positions to send the needle to.
+ * 
+ * Every full revolution away from a target points the same way.  The 
+ * closest one is not always the quickest to get to if the motor is 
+ * already spinning, since it may have to stop and turn around.  This 
+ * works out how long a trapezoid move would take to each of the nearby
+ * ones, from where the motor is and how fast it is going, and picks the
+ * quickest.
+ * 
+ * Positions are all long, so nothing overflows near the rebase limit.
+ * 
+ * @author theredwagoneer
+ *
+ */
+class MovePlanner {
+	/** Microsteps in one revolution */
+	private final long stepsPerRev;
+	
+	/** Top speed in microsteps per second */
+	private final double maxSpeed;
+	
+	/** Acceleration in microsteps per second^2 */
+	private final double maxAccel;
+	
+	/** Deceleration in microsteps per second^2 */
+	private final double maxDecel;
+	
+	/** Moves closer in time than this are a tie, in seconds */
+	private static final double TIE_S = 1e-3;
+	
+	/**
+	 * Constructor
+	 * @param stepsPerRev - Microsteps in one revolution
+	 * @param maxSpeed - Top speed in microsteps per second
+	 * @param maxAccel - Acceleration in microsteps per second^2
+	 * @param maxDecel - Deceleration in microsteps per second^2
+	 */
+	MovePlanner(long stepsPerRev, double maxSpeed, double maxAccel, double maxDecel)
+	{
+		this.stepsPerRev = stepsPerRev;
+		this.maxSpeed = maxSpeed;
+		this.maxAccel = maxAccel;
+		this.maxDecel = maxDecel;
+	}
+	
+	/**
+	 * Constructor using the motor settings
+	 */
+	MovePlanner()
+	{
+		this(CompassConst.MICROSTEPS_PER_REV, CompassConst.MAX_SPEED_PER_S, 
+			 CompassConst.MAX_ACCEL_PER_S2, CompassConst.MAX_DECEL_PER_S2);
+	}
+	
+	/**
+	 * Find the quickest position to get to that points the needle at the 
+	 * target.  The revolution before and after the two closest ones are
+	 * checked too.  On a tie, the closest one wins.
+	 * @param position - Where the motor is now in microsteps
+	 * @param velocity - How fast it is going in microsteps per second
+	 * @param targetSteps - Direction to point, in microsteps from home
+	 * @return position to send the motor to, in microsteps
+	 */
+	long plan(long position, double velocity, long targetSteps)
+	{
+		long ahead = position + Math.floorMod(targetSteps - position, stepsPerRev);
+		long best = ahead;
+		double bestTime = Double.POSITIVE_INFINITY;
+		
+		for (long candidate = ahead - 2 * stepsPerRev; candidate <= ahead + stepsPerRev; candidate += stepsPerRev)
+		{
+			double time = arrivalTime(candidate - position, velocity);
+			if (time < bestTime - TIE_S ||
+				(time < bestTime + TIE_S && Math.abs(candidate - position) < Math.abs(best - position)))
+			{
+				best = candidate;
+				bestTime = Math.min(time, bestTime);
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * Time to move a distance and stop there, starting at a velocity.
+	 * @param distance - How far to go in microsteps.  Sign is the direction.
+	 * @param velocity - Starting velocity in microsteps per second
+	 * @return time in seconds
+	 */
+	double arrivalTime(long distance, double velocity)
+	{
+		// Flip things around so we are always going forward
+		double d = Math.abs((double)distance);
+		double v = (distance < 0) ? -velocity : velocity;
+		v = Math.max(-maxSpeed, Math.min(maxSpeed, v));
+		
+		if (v < 0)
+		{
+			// Going the wrong way.  Stop, then go from there.
+			double stopDistance = v * v / (2 * maxDecel);
+			return -v / maxDecel + fromSpeed(d + stopDistance, 0);
+		}
+		
+		double stopDistance = v * v / (2 * maxDecel);
+		if (stopDistance > d)
+		{
+			// Going too fast to stop in time.  Overshoot, stop, and come back.
+			return v / maxDecel + fromSpeed(stopDistance - d, 0);
+		}
+		return fromSpeed(d, v);
+	}
+	
+	/**
+	 * Time to go forward a distance and stop, starting at a forward speed
+	 * slow enough to stop in time.
+	 * @param d - Distance in microsteps
+	 * @param v - Starting speed in microsteps per second
+	 * @return time in seconds
+	 */
+	private double fromSpeed(double d, double v)
+	{
+		if (d <= 0 && v <= 0)
+		{
+			return 0;
+		}
+		
+		// Speed we would peak at with no top speed
+		double peakSquared = (d + v * v / (2 * maxAccel)) / (1 / (2 * maxAccel) + 1 / (2 * maxDecel));
+		double peak = Math.sqrt(peakSquared);
+		if (peak <= maxSpeed)
+		{
+			return (peak - v) / maxAccel + peak / maxDecel;
+		}
+		
+		// Reaches top speed and cruises for a bit
+		double rampDistance = (maxSpeed * maxSpeed - v * v) / (2 * maxAccel) + 
+							  maxSpeed * maxSpeed / (2 * maxDecel);
+		return (maxSpeed - v) / maxAccel + maxSpeed / maxDecel + (d - rampDistance) / maxSpeed;
+	}
+}
@@ -0,0 +1,84 @@
+package com.github.theredwagoneer.realcompass;
+
+import net.minecraft.util.RegistryKey;
+import net.minecraft.world.World;
+
+/**
+ * Copy of the player state taken once per client tick.
+ * 
+ * The compass update thread works from one of these instead of reading
+ * the live player fields, which the game thread is changing under it.
+ * Instances are owned by the reader and refilled in place by 
+ * PlayerStateHolder, so nothing is allocated per tick.
+ * 
+ * @author theredwagoneer
+ *
+ */
+final class PlayerState {
+	/** Player yaw in degrees */
+	private float yaw;
+	
+	/** Player x position */
+	private double x;
+	
+	/** Player z position */
+	private double z;
+	
+	/** Dimension the player is in */
+	private RegistryKey<World> dimension;
+	
+	/** Client tick the state was taken on */
+	private long tick = -1;
+	
+	/**
+	 * Refill the state.  Only PlayerStateHolder should do this.
+	 */
+	void set(float yaw, double x, double z, RegistryKey<World> dimension, long tick)
+	{
+		this.yaw = yaw;
+		this.x = x;
+		this.z = z;
+		this.dimension = dimension;
+		this.tick = tick;
+	}
+	
+	/**
+	 * @return player yaw in degrees
+	 */
+	float getYaw()
+	{
+		return yaw;
+	}
+	
+	/**
+	 * @return player x position
+	 */
+	double getX()
+	{
+		return x;
+	}
+	
+	/**
+	 * @return player z position
+	 */
+	double getZ()
+	{
+		return z;
+	}
+	
+	/**
+	 * @return dimension the player is in
+	 */
+	RegistryKey<World> getDimension()
+	{
+		return dimension;
+	}
+	
+	/**
+	 * @return client tick the state was taken on, or -1 if never filled
+	 */
+	long getTick()
+	{
+		return tick;
+	}
+}
@@ -0,0 +1,87 @@
+package com.github.theredwagoneer.realcompass;
+
+import net.minecraft.util.RegistryKey;
+import net.minecraft.world.World;
+
+/**
+ * Hands the player state from the client tick thread to the compass 
+ * update thread without locks.
+ * 
+ * This is a seqlock.  The single writer makes the sequence odd, writes
+ * the fields, then makes it even again.  A reader copies the fields and 
+ * tries again if the sequence was odd or moved while it was copying.  
+ * The fields are volatile so the copy can't be reordered around the 
+ * sequence reads.
+ * 
+ * @author theredwagoneer
+ *
+ */
+class PlayerStateHolder {
+	/** Odd while a write is in progress */
+	private volatile int sequence = 0;
+	
+	/** Counts publishes where the player actually moved or turned */
+	private volatile int changes = 0;
+	
+	private volatile float yaw;
+	private volatile double x;
+	private volatile double z;
+	private volatile RegistryKey<World> dimension;
+	private volatile long tick = -1;
+	
+	/**
+	 * Publish a new player state.  Must only be called from one thread.
+	 * @param newYaw - Player yaw in degrees
+	 * @param newX - Player x position
+	 * @param newZ - Player z position
+	 * @param newDimension - Dimension the player is in
+	 * @param newTick - Client tick number
+	 * @return true if the player moved, turned or changed dimension
+	 */
+	boolean publish(float newYaw, double newX, double newZ, RegistryKey<World> newDimension, long newTick)
+	{
+		boolean changed = tick < 0 || newYaw != yaw || newX != x || newZ != z || newDimension != dimension;
+		
+		sequence++;
+		yaw = newYaw;
+		x = newX;
+		z = newZ;
+		dimension = newDimension;
+		tick = newTick;
+		sequence++;
+		
+		if (changed)
+		{
+			changes++;
+		}
+		return changed;
+	}
+	
+	/**
+	 * Copy the latest state
+	 * @param into - State to fill in
+	 * @return false if nothing was ever published
+	 */
+	boolean read(PlayerState into)
+	{
+		int before;
+		int after;
+		do
+		{
+			before = sequence;
+			into.set(yaw, x, z, dimension, tick);
+			after = sequence;
+		} while ((before & 1) != 0 || before != after);
+		
+		return into.getTick() >= 0;
+	}
+	
+	/**
+	 * Number of changes published, so a reader can tell if it is behind
+	 * @return count of publishes that changed something
+	 */
+	int getChanges()
+	{
+		return changes;
+	}
+}
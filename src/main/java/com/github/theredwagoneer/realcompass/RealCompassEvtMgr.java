@@ -1,15 +1,21 @@
 package com.github.theredwagoneer.realcompass;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.settings.KeyBinding;
 import net.minecraft.util.text.StringTextComponent;
 import net.minecraft.util.text.TextComponent;
+import net.minecraftforge.client.event.ClientPlayerNetworkEvent;
+import net.minecraftforge.client.event.RenderGameOverlayEvent;
 import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.event.TickEvent;
 import net.minecraftforge.event.TickEvent.Phase;
 import net.minecraftforge.event.entity.player.PlayerEvent;
+import net.minecraftforge.event.world.ChunkEvent;
 import net.minecraftforge.fml.client.registry.ClientRegistry;
 import net.minecraftforge.fml.event.lifecycle.FMLClientSetupEvent;
 import net.minecraftforge.fml.javafmlmod.FMLJavaModLoadingContext;
@@ -31,10 +37,39 @@ class RealCompassEvtMgr
 	/** Instance of the compass mode manager for controlling the mode */
     private static CompassModeMgr COMPASS_MODE;
     
-    /** Instance of the Compass object which actually interacts with the
-     * motor controller in the physical compass.
+    /** Instances of the Compass object which actually interact with the
+     * motor controllers in the physical compasses.  The keys control the
+     * mode manager's active one.
      */
-    private static Compass COMPASS;
+    private static List<Compass> COMPASSES;
+    
+    /** What the compass keys do */
+    private static CompassKeys KEYS;
+    
+    /** Runs the updates for all the compasses */
+    private static CompassScheduler SCHEDULER;
+    
+    /** Where the compass metrics are written to, without the ending */
+    private static String METRICS_FILE_BASE;
+    
+    /** Times the mod's work on the game thread */
+    private static final TickProfiler PROFILER = new TickProfiler();
+    
+    /** Where the game thread timings are written */
+    private static File TICK_COST_FILE;
+    
+    /** Finds the entity for the nearest entity mode */
+    private static EntityTracker ENTITY_TRACKER;
+    
+    /** Finds the block for the nearest block mode.  Made at setup, since
+     * chunks can load before the player does. */
+    private static BlockTracker BLOCK_TRACKER;
+    
+    /** Records the player's ticks and key presses, or null if not recording */
+    private static TraceRecorder TRACE;
+    
+    /** Number of client ticks seen, to stamp the player state */
+    private static long tickCount = 0;
     
     /** Key binding for the homing function */
     public static KeyBinding KB_COMPASS_HOME;
@@ -45,6 +80,12 @@ class RealCompassEvtMgr
 	/** Key Binding to sace locations. */
 	public static KeyBinding KB_COMPASS_SAVE;
 	
+	/** Key Binding to pick which compass the other keys control */
+	public static KeyBinding KB_COMPASS_SELECT;
+	
+	/** Key Binding to cycle the update period.  Not bound to start with. */
+	public static KeyBinding KB_COMPASS_PERIOD;
+	
 	/**
 	 * Called by the main class to register the listeners in this class
 	 */
@@ -55,6 +96,10 @@ class RealCompassEvtMgr
 		// Register the ClientTick to the Forge Event Bus
 		MinecraftForge.EVENT_BUS.addListener(this::ClientTick);
 		MinecraftForge.EVENT_BUS.addListener(this::playerLoad);
+		MinecraftForge.EVENT_BUS.addListener(this::loggedOut);
+		MinecraftForge.EVENT_BUS.addListener(this::debugOverlay);
+		MinecraftForge.EVENT_BUS.addListener(this::chunkLoad);
+		MinecraftForge.EVENT_BUS.addListener(this::chunkUnload);
 		
 	}
 	
@@ -69,67 +114,343 @@ class RealCompassEvtMgr
 		KB_COMPASS_HOME = new KeyBinding("Home the Compass", 'H', "Compass Controls");
 		KB_COMPASS_FUNCTION = new KeyBinding("Cycle Compass Function", 'Y', "Compass Controls");
 		KB_COMPASS_SAVE = new KeyBinding("Save Location", 'V', "Compass Controls");
+		KB_COMPASS_SELECT = new KeyBinding("Select Compass", 'U', "Compass Controls");
+		KB_COMPASS_PERIOD = new KeyBinding("Cycle Update Period", -1, "Compass Controls");
 		
 		ClientRegistry.registerKeyBinding(KB_COMPASS_HOME);
 		ClientRegistry.registerKeyBinding(KB_COMPASS_FUNCTION);
 		ClientRegistry.registerKeyBinding(KB_COMPASS_SAVE);
+		ClientRegistry.registerKeyBinding(KB_COMPASS_SELECT);
+		ClientRegistry.registerKeyBinding(KB_COMPASS_PERIOD);
 		
 		 MC = Minecraft.getInstance();       
+		 BLOCK_TRACKER = new BlockTracker(CompassConst.TRACKED_BLOCK);
     }
+	
+	/**
+	 * Tells the block tracker about chunks loading on the client
+	 * @param event - The chunk load event
+	 */
+	public void chunkLoad(ChunkEvent.Load event) {
+		if (BLOCK_TRACKER != null && event.getWorld() != null && event.getWorld().isClientSide())
+		{
+			BLOCK_TRACKER.chunkLoaded(event.getWorld(), event.getChunk().getPos());
+		}
+	}
+	
+	/**
+	 * Tells the block tracker about chunks unloading on the client
+	 * @param event - The chunk unload event
+	 */
+	public void chunkUnload(ChunkEvent.Unload event) {
+		if (BLOCK_TRACKER != null && event.getWorld() != null && event.getWorld().isClientSide())
+		{
+			BLOCK_TRACKER.chunkUnloaded(event.getWorld(), event.getChunk().getPos());
+		}
+	}
 
 	/**
-	 * Instantiates the compass when a player is loaded
+	 * Instantiates the compasses when a player is loaded
 	 * @param event - The player load event
 	 */
 	public void playerLoad(PlayerEvent.LoadFromFile event) {
-		if (COMPASS != null)
+		long begin = PROFILER.begin();
+		if (COMPASSES != null)
 		{
 			// If compass was previously instantiated, kill the task
 			// before you make a new one
-			COMPASS.kill();
+			for (Compass compass : COMPASSES)
+			{
+				compass.kill();
+			}
+			dumpMetrics();
+			COMPASS_MODE.close();
+			stopTrace();
+		}
+		else
+		{
+			SCHEDULER = new CompassScheduler();
 		}
 		File filename = new File(event.getPlayerDirectory(),event .getPlayerUUID()+"-CompassLocations.json");
-		COMPASS_MODE = new CompassModeMgr(filename);
-		COMPASS = new Compass(COMPASS_MODE);
+		METRICS_FILE_BASE = new File(event.getPlayerDirectory(),event .getPlayerUUID()+"-CompassMetrics").getPath();
+		TICK_COST_FILE = new File(event.getPlayerDirectory(),event .getPlayerUUID()+"-CompassTickCost.txt");
+		
+		List<IMotorDriver> drivers = findMotorDrivers();
+		COMPASS_MODE = new CompassModeMgr(filename, drivers.size());
+		List<Compass> compasses = new ArrayList<Compass>(drivers.size());
+		for (int i = 0; i < drivers.size(); i++)
+		{
+			compasses.add(new Compass("Compass " + i, COMPASS_MODE, i, drivers.get(i), SCHEDULER));
+		}
+		COMPASSES = compasses;
+		KEYS = new CompassKeys(COMPASS_MODE, compasses, SCHEDULER);
+		ENTITY_TRACKER = new EntityTracker(CompassConst.TRACKED_ENTITY);
+		
+		if (CompassConst.RECORD_TRACE)
+		{
+			File traceFile = new File(event.getPlayerDirectory(),event .getPlayerUUID()+"-CompassTrace.bin");
+			TRACE = new TraceRecorder(traceFile, compasses.size(), 
+					(int)TimeUnit.NANOSECONDS.toMillis(SCHEDULER.getPeriodNanos()));
+		}
+		PROFILER.end(TickProfiler.Section.PLAYER_LOAD, begin);
+	}
+	
+	/**
+	 * Get a driver for each compass attached.
+	 * 
+	 * javatic only opens the first TIC it finds, so that is the only real
+	 * one.  Simulated ones can be added after it for testing.
+	 * @return the drivers
+	 */
+	private static List<IMotorDriver> findMotorDrivers()
+	{
+		List<IMotorDriver> drivers = new ArrayList<IMotorDriver>();
+		if (CompassConst.SIMULATE_MOTOR)
+		{
+			drivers.add(new SimulatedTicDriver(CompassConst.SIMULATED_LATENCY_MS));
+		}
+		else
+		{
+			drivers.add(new TicMotorDriver());
+		}
+		for (int i = 0; i < CompassConst.EXTRA_SIMULATED_COMPASSES; i++)
+		{
+			drivers.add(new SimulatedTicDriver(CompassConst.SIMULATED_LATENCY_MS));
+		}
+		return drivers;
+	}
+	
+	/**
+	 * Write out the metrics for each compass, and the game thread timings.
+	 * The first compass keeps the plain file name.
+	 */
+	private static void dumpMetrics()
+	{
+		for (int i = 0; i < COMPASSES.size(); i++)
+		{
+			String ending = (i == 0) ? ".txt" : "-" + i + ".txt";
+			COMPASSES.get(i).getMetrics().dump(new File(METRICS_FILE_BASE + ending));
+		}
+		PROFILER.dump(TICK_COST_FILE);
+	}
+	
+	/**
+	 * Finish writing the trace, if recording
+	 */
+	private static void stopTrace()
+	{
+		if (TRACE != null)
+		{
+			TRACE.close();
+			TRACE = null;
+		}
+	}
+	
+	/**
+	 * Note a key press in the trace, if recording
+	 * @param key - Key pressed
+	 * @param message - Message it put in the chat
+	 */
+	private static void traceKey(TraceRecorder.Key key, String message)
+	{
+		if (TRACE != null)
+		{
+			TRACE.key(key, message);
+		}
+	}
+	
+	/**
+	 * Find the first compass key clicked since the last tick.  Only one
+	 * is taken per tick.
+	 * @return the key, or null if none was
+	 */
+	private static TraceRecorder.Key pressedKey()
+	{
+		if (KB_COMPASS_HOME.consumeClick())
+		{
+			return TraceRecorder.Key.HOME;
+		}
+		if (KB_COMPASS_FUNCTION.consumeClick())
+		{
+			return TraceRecorder.Key.FUNCTION;
+		}
+		if (KB_COMPASS_SELECT.consumeClick())
+		{
+			return TraceRecorder.Key.SELECT;
+		}
+		if (KB_COMPASS_PERIOD.consumeClick())
+		{
+			return TraceRecorder.Key.PERIOD;
+		}
+		if (KB_COMPASS_SAVE.consumeClick())
+		{
+			return TraceRecorder.Key.SAVE;
+		}
+		return null;
+	}
+	
+	/**
+	 * @param key - Key pressed
+	 * @return the profiler section its work is timed under
+	 */
+	private static TickProfiler.Section keySection(TraceRecorder.Key key)
+	{
+		switch (key)
+		{
+		case HOME:
+			return TickProfiler.Section.HOME;
+		case FUNCTION:
+			return TickProfiler.Section.FUNCTION;
+		case SELECT:
+			return TickProfiler.Section.SELECT;
+		case PERIOD:
+			return TickProfiler.Section.PERIOD;
+		default:
+			return TickProfiler.Section.SAVE;
+		}
+	}
+	
+	
+	/**
+	 * Makes sure saved locations are on disk and writes out the compass 
+	 * metrics when leaving a world
+	 * @param event - The log out event
+	 */
+	public void loggedOut(ClientPlayerNetworkEvent.LoggedOutEvent event) {
+		if (COMPASSES != null)
+		{
+			long begin = PROFILER.begin();
+			COMPASS_MODE.flush();
+			stopTrace();
+			PROFILER.end(TickProfiler.Section.LOGGED_OUT, begin);
+			dumpMetrics();
+		}
+	}
+	
+	/**
+	 * Adds the compass metrics to the F3 debug screen
+	 * @param event - The overlay text event
+	 */
+	public void debugOverlay(RenderGameOverlayEvent.Text event) {
+		if (COMPASSES != null && MC.options.renderDebug)
+		{
+			long begin = PROFILER.begin();
+			for (Compass compass : COMPASSES)
+			{
+				MotorSnapshot motor = compass.getSnapshot();
+				event.getRight().add(String.format("%s %s: position %d, velocity %.1f/s", compass.getName(), 
+						compass.getConnectionState(), motor.getPosition(), motor.getVelocity() / 10000.0));
+				event.getRight().addAll(compass.getMetrics().summary());
+			}
+			if (COMPASS_MODE.isTrackingBlock())
+			{
+				event.getRight().add(String.format("Compass blocks: %d found, %d chunks to look through",
+						BLOCK_TRACKER.getFoundCount(), BLOCK_TRACKER.getPendingCount()));
+			}
+			event.getRight().addAll(PROFILER.summary());
+			PROFILER.end(TickProfiler.Section.OVERLAY, begin);
+		}
+	}
+	
+	/**
+	 * Follow the nearest entity and point the compasses in that mode again
+	 * if it moved
+	 */
+	private static void trackEntity()
+	{
+		long begin = PROFILER.begin();
+		if (ENTITY_TRACKER.tick(MC.player, MC.level, COMPASS_MODE.getEntityTarget()))
+		{
+			for (int i = 0; i < COMPASSES.size(); i++)
+			{
+				if (COMPASS_MODE.isTrackingEntity(i))
+				{
+					COMPASSES.get(i).retarget();
+				}
+			}
+		}
+		PROFILER.end(TickProfiler.Section.ENTITY, begin);
 	}
 	
+	/**
+	 * Look through more chunks for the nearest block and point the
+	 * compasses in that mode again if it changed
+	 */
+	private static void trackBlock()
+	{
+		long begin = PROFILER.begin();
+		if (BLOCK_TRACKER.tick(MC.player, MC.level, COMPASS_MODE.getBlockTarget()))
+		{
+			for (int i = 0; i < COMPASSES.size(); i++)
+			{
+				if (COMPASS_MODE.isTrackingBlock(i))
+				{
+					COMPASSES.get(i).retarget();
+				}
+			}
+		}
+		PROFILER.end(TickProfiler.Section.BLOCKS, begin);
+	}
 	
 	/**
 	 * Monitors for key presses and activates compass functions in reaction.
+	 * 
+	 * At the end of the tick, hands the player state to the compass.
+	 * 
+	 * Both halves, and the work for each key, are timed.
 	 * @param event - Client tick event
 	 */
 	public void ClientTick(TickEvent.ClientTickEvent event) {
 		
+		long begin = PROFILER.begin();
 		if (event.phase == Phase.START) {
 			
-			if (KB_COMPASS_HOME.consumeClick()) 
+			if (COMPASS_MODE != null && MC.player != null)
 			{
-				COMPASS.setHome();
-				TextComponent msg = new StringTextComponent("Compass Homed...");
-				MC.gui.getChat().addMessage(msg);	
-			} 
-			else if (KB_COMPASS_FUNCTION.consumeClick())
+				String problem = COMPASS_MODE.takeLoadProblem();
+				if (problem != null)
+				{
+					MC.gui.getChat().addMessage(new StringTextComponent(problem));
+				}
+			}
+			
+			TraceRecorder.Key pressed = (KEYS != null) ? pressedKey() : null;
+			if (pressed != null)
 			{
-				String resp = COMPASS_MODE.next();
+				long key = PROFILER.begin();
+				String resp = KEYS.press(pressed, MC.player.xo, MC.player.zo);
 				TextComponent msg = new StringTextComponent(resp);
 				MC.gui.getChat().addMessage(msg);
-				
-				if(COMPASS_MODE.isOffMode())
+				traceKey(pressed, resp);
+				PROFILER.end(keySection(pressed), key);
+			}
+			PROFILER.end(TickProfiler.Section.TICK_START, begin);
+		}
+		else if (event.phase == Phase.END)
+		{
+			if (COMPASSES != null && MC.player != null)
+			{
+				for (Compass compass : COMPASSES)
+				{
+					compass.publishPlayerState(MC.player.yRot, MC.player.xo, MC.player.zo, MC.level.dimension(), tickCount);
+				}
+				if (TRACE != null)
+				{
+					TRACE.tick(MC.player.yRot, MC.player.xo, MC.player.zo);
+				}
+				KEYS.tick();
+				if (COMPASS_MODE.isTrackingEntity())
 				{
-					COMPASS.deenergize();
+					trackEntity();
 				}
-				else
+				if (COMPASS_MODE.isTrackingBlock())
 				{
-					COMPASS.energize();
+					trackBlock();
 				}
-				
+				tickCount++;
 			}
-			else if (KB_COMPASS_SAVE.consumeClick())
-			{
-				String resp = COMPASS_MODE.saveCurrentLocation();
-				TextComponent msg = new StringTextComponent(resp);
-				MC.gui.getChat().addMessage(msg);
-			}	
+			PROFILER.end(TickProfiler.Section.TICK_END, begin);
+			PROFILER.endTick();
 		}
 	}
 }
@@ -0,0 +1,280 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+import javax.usb.UsbDisconnectedException;
+import javax.usb.UsbException;
+
+import com.github.theredwagoneer.javatic.TicSet;
+
+/**
+ * Motor driver that pretends to be a TIC, so the compass can run without
+ * the hardware attached.
+ * 
+ * The motor is modeled with the speed and acceleration limits from the
+ * settings it is given, and each call takes the configured USB latency.
+ * It counts commands and reads so command rates can be measured.
+ * 
+ * @author theredwagoneer
+ *
+ */
+class SimulatedTicDriver implements IMotorDriver
+{
+	/** TIC velocities are in microsteps per 10000 s */
+	private static final double VELOCITY_SCALE = 10000.0;
+	
+	/** Time each call takes, in ns */
+	private final long latencyNanos;
+	
+	/** Where time comes from */
+	private final LongSupplier clock;
+	
+	/** Lets the given number of ns pass */
+	private final LongConsumer wait;
+	
+	/** The simulated motor */
+	private MotorModel model = new MotorModel();
+	
+	/** Settings it has been given.  Starts out blank like a new TIC. */
+	private final Map<TicSet, Long> settings = new HashMap<>();
+	
+	/** Number of settings written */
+	private volatile long settingsWriteCount = 0;
+	
+	/** Is the motor energized? */
+	private boolean energized = false;
+	
+	/** Last target position, held while deenergized */
+	private long target = 0;
+	
+	/** Is the pretend USB cable plugged in? */
+	private volatile boolean pluggedIn = true;
+	
+	/** Has the TIC been opened since it was last plugged in? */
+	private boolean connected = true;
+	
+	/** Number of commands sent */
+	private volatile long commandCount = 0;
+	
+	/** Number of variables read */
+	private volatile long readCount = 0;
+	
+	/**
+	 * Constructor
+	 * @param latencyNanos - Time each call takes, in ns
+	 * @param clock - Source of time in ns
+	 * @param wait - Lets the given number of ns pass.  With a made up 
+	 * 			clock, this moves it on.
+	 */
+	SimulatedTicDriver(long latencyNanos, LongSupplier clock, LongConsumer wait)
+	{
+		this.latencyNanos = latencyNanos;
+		this.clock = clock;
+		this.wait = wait;
+		model.sync(0, clock.getAsLong());
+	}
+	
+	/**
+	 * Constructor using real time
+	 * @param latencyMs - Time each call takes, in ms
+	 */
+	SimulatedTicDriver(int latencyMs)
+	{
+		this(TimeUnit.MILLISECONDS.toNanos(latencyMs), System::nanoTime, LockSupport::parkNanos);
+	}
+	
+	public void applySettings(Map<TicSet, Long> newSettings)
+	{
+		settingsWriteCount += newSettings.size();
+		settings.putAll(newSettings);
+		
+		if (settings.containsKey(TicSet.MAX_SPEED) && settings.containsKey(TicSet.MAX_ACCEL) && 
+			settings.containsKey(TicSet.MAX_DECEL))
+		{
+			long now = clock.getAsLong();
+			long position = model.getPosition(now);
+			
+			model = new MotorModel(settings.get(TicSet.MAX_SPEED) / VELOCITY_SCALE,
+								   settings.get(TicSet.MAX_ACCEL) / 100.0,
+								   settings.get(TicSet.MAX_DECEL) / 100.0);
+			model.sync(position, now);
+		}
+	}
+	
+	public Map<TicSet, Long> readSettings() throws UsbException
+	{
+		read();
+		return new HashMap<>(settings);
+	}
+	
+	public void reconnect() throws UsbException
+	{
+		transfer();
+		if (!pluggedIn)
+		{
+			throw new UsbDisconnectedException();
+		}
+		if (!connected)
+		{
+			// A TIC that lost power comes back deenergized at 0
+			long now = clock.getAsLong();
+			energized = false;
+			target = 0;
+			model.halt(0, now);
+			connected = true;
+		}
+	}
+	
+	public void energize() throws UsbException
+	{
+		command();
+		energized = true;
+		model.commandPosition(target, clock.getAsLong());
+	}
+	
+	public void deenergize() throws UsbException
+	{
+		command();
+		energized = false;
+		long now = clock.getAsLong();
+		model.halt(model.getPosition(now), now);
+	}
+	
+	public void setHome() throws UsbException
+	{
+		haltAndSetPosition(0);
+	}
+	
+	public void setTargetPosition(int position) throws UsbException
+	{
+		command();
+		target = position;
+		if (energized)
+		{
+			model.commandPosition(position, clock.getAsLong());
+		}
+	}
+	
+	public void setTargetVelocity(int velocity) throws UsbException
+	{
+		command();
+		if (energized)
+		{
+			model.commandVelocity(velocity / VELOCITY_SCALE, clock.getAsLong());
+		}
+	}
+	
+	public void haltAndSetPosition(int position) throws UsbException
+	{
+		command();
+		target = position;
+		model.halt(position, clock.getAsLong());
+	}
+	
+	public long getCurrentPosition() throws UsbException
+	{
+		read();
+		return model.getPosition(clock.getAsLong());
+	}
+	
+	public long getCurrentVelocity() throws UsbException
+	{
+		read();
+		return Math.round(model.getVelocity(clock.getAsLong()) * VELOCITY_SCALE);
+	}
+	
+	/**
+	 * Where the simulated motor really is, without any latency.  For
+	 * measuring tracking error.
+	 * @return position in microsteps
+	 */
+	long peekPosition()
+	{
+		return model.getPosition(clock.getAsLong());
+	}
+	
+	/**
+	 * Pretend to plug in or unplug the TIC.  Once unplugged, it has to be
+	 * reconnected to use it again.
+	 * @param pluggedIn - true to plug it in
+	 */
+	void setPluggedIn(boolean pluggedIn)
+	{
+		this.pluggedIn = pluggedIn;
+	}
+	
+	/**
+	 * @return number of settings written
+	 */
+	long getSettingsWriteCount()
+	{
+		return settingsWriteCount;
+	}
+	
+	/**
+	 * @return number of commands sent
+	 */
+	long getCommandCount()
+	{
+		return commandCount;
+	}
+	
+	/**
+	 * @return number of variables read
+	 */
+	long getReadCount()
+	{
+		return readCount;
+	}
+	
+	/**
+	 * Account for a command going over the pretend USB
+	 */
+	private void command()
+	{
+		commandCount++;
+		transfer();
+		checkConnected();
+	}
+	
+	/**
+	 * Account for a read going over the pretend USB
+	 */
+	private void read()
+	{
+		readCount++;
+		transfer();
+		checkConnected();
+	}
+	
+	/**
+	 * Fail the way the USB does if the TIC was unplugged
+	 */
+	private void checkConnected()
+	{
+		if (!pluggedIn)
+		{
+			connected = false;
+		}
+		if (!connected)
+		{
+			throw new UsbDisconnectedException();
+		}
+	}
+	
+	/**
+	 * Take as long as a USB transfer would
+	 */
+	private void transfer()
+	{
+		if (latencyNanos > 0)
+		{
+			wait.accept(latencyNanos);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.github.theredwagoneer.realcompass;
+
+/**
+ * Sits in front of SET_TARGET_POSITION and drops commands that would not
+ * really move the motor.
+ * 
+ * It remembers the last target sent and suppresses any new target within
+ * the deadband of it.  This keeps the USB quiet while the player stands
+ * still and stops the motor hunting over tiny jitter.
+ * 
+ * @author theredwagoneer
+ *
+ */
+class TargetCoalescer {
+	/** Targets this close to the last one sent are not sent */
+	private final int deadband;
+	
+	/** Last target actually sent */
+	private long lastSent = 0;
+	
+	/** False until something was sent, or after a reset */
+	private boolean hasSent = false;
+	
+	/** Number of targets sent */
+	private volatile long sentCount = 0;
+	
+	/** Number of targets suppressed */
+	private volatile long suppressedCount = 0;
+	
+	/**
+	 * Constructor
+	 * @param deadband - Targets within this many microsteps of the last one
+	 * 			are suppressed
+	 */
+	TargetCoalescer(int deadband)
+	{
+		this.deadband = deadband;
+	}
+	
+	/**
+	 * Decide if a target is worth sending.  Counts it as suppressed if not.
+	 * @param target - New target in microsteps
+	 * @return true if the target should be sent
+	 */
+	boolean shouldSend(long target)
+	{
+		if (hasSent && Math.abs(target - lastSent) <= deadband)
+		{
+			suppressedCount++;
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Record that a target made it to the TIC
+	 * @param target - Target that was sent
+	 */
+	void sent(long target)
+	{
+		lastSent = target;
+		hasSent = true;
+		sentCount++;
+	}
+	
+	/**
+	 * Forget the last target so the next one is always sent.
+	 */
+	void reset()
+	{
+		hasSent = false;
+	}
+	
+	/**
+	 * @return number of targets sent
+	 */
+	long getSentCount()
+	{
+		return sentCount;
+	}
+	
+	/**
+	 * @return number of targets suppressed
+	 */
+	long getSuppressedCount()
+	{
+		return suppressedCount;
+	}
+}
@@ -0,0 +1,57 @@
+package com.github.theredwagoneer.realcompass;
+
+/**
+ * Hands the position of what a compass points to, such as the tracked
+ * entity or block, from the client tick thread to the compass update 
+ * thread without locks.
+ *
+ * This is a seqlock, the same as PlayerStateHolder.
+ *
+ * @author theredwagoneer
+ *
+ */
+class TargetHolder {
+	/** Odd while a write is in progress */
+	private volatile int sequence = 0;
+
+	private volatile boolean found = false;
+	private volatile double x;
+	private volatile double z;
+
+	/**
+	 * Publish where the target is.  Must only be called from one thread.
+	 * @param newFound - Is there a target?
+	 * @param newX - Target x position
+	 * @param newZ - Target z position
+	 */
+	void publish(boolean newFound, double newX, double newZ)
+	{
+		sequence++;
+		found = newFound;
+		x = newX;
+		z = newZ;
+		sequence++;
+	}
+
+	/**
+	 * Copy the latest target position
+	 * @param into - Filled in with x then z
+	 * @return false if there is no target
+	 */
+	boolean read(double[] into)
+	{
+		int before;
+		int after;
+		boolean wasFound;
+		do
+		{
+			before = sequence;
+			wasFound = found;
+			into[0] = x;
+			into[1] = z;
+			after = sequence;
+		} while ((before & 1) != 0 || before != after);
+
+		return wasFound;
+	}
+}
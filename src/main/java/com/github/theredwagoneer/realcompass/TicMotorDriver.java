@@ -0,0 +1,120 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.usb.UsbException;
+
+import com.github.theredwagoneer.javatic.TicCmd;
+import com.github.theredwagoneer.javatic.TicInterface;
+import com.github.theredwagoneer.javatic.TicSet;
+import com.github.theredwagoneer.javatic.TicVar;
+
+/**
+ * Motor driver for a real Pololu TIC over USB.
+ * 
+ * @author theredwagoneer
+ *
+ */
+class TicMotorDriver implements IMotorDriver
+{
+	/** Settings written to the TIC since the game started and it was last
+	 * plugged in.  javatic can't read settings back from the TIC, so this
+	 * stands in for reading them.  That means the diff only works within
+	 * one run of the game: the first setup after starting the game always
+	 * writes every setting.  Kept between worlds, since the TIC is still 
+	 * the same one.  Once it has been unplugged there is no telling what 
+	 * it has, so this is cleared and everything gets written again.
+	 */
+	private static final Map<TicSet, Long> APPLIED = new HashMap<>();
+	
+	/** Interface to the TIC.  Opened on first use, which is on the 
+	 * compass's setup thread rather than while the player loads. */
+	private volatile TicInterface tic = null;
+	
+	public void applySettings(Map<TicSet, Long> settings)
+	{
+		tic().applySettings(settings);
+		synchronized (APPLIED)
+		{
+			APPLIED.putAll(settings);
+		}
+	}
+	
+	public Map<TicSet, Long> readSettings() throws UsbException
+	{
+		// This is the first thing setup does, so open the TIC here.  What
+		// comes back is only what this run of the game has written.
+		tic();
+		synchronized (APPLIED)
+		{
+			return new HashMap<>(APPLIED);
+		}
+	}
+	
+	public void reconnect() throws UsbException
+	{
+		synchronized (APPLIED)
+		{
+			APPLIED.clear();
+		}
+		tic = new TicInterface();
+		
+		// Make sure it is really there before calling it connected
+		TicVar.CURRENT_POSITION.get(tic());
+	}
+	
+	public void energize() throws UsbException
+	{
+		TicCmd.ENERGIZE.Send(tic());
+	}
+	
+	public void deenergize() throws UsbException
+	{
+		TicCmd.DEENERGIZE.Send(tic());
+	}
+	
+	public void setHome() throws UsbException
+	{
+		tic().setHome();
+	}
+	
+	public void setTargetPosition(int position) throws UsbException
+	{
+		TicCmd.SET_TARGET_POSITION.Send(tic(),position);
+	}
+	
+	public void setTargetVelocity(int velocity) throws UsbException
+	{
+		TicCmd.SET_TARGET_VELOCITY.Send(tic(),velocity);
+	}
+	
+	public void haltAndSetPosition(int position) throws UsbException
+	{
+		TicCmd.HALT_AND_SET_POSITION.Send(tic(),position);
+	}
+	
+	public long getCurrentPosition() throws UsbException
+	{
+		return TicVar.CURRENT_POSITION.get(tic());
+	}
+	
+	public long getCurrentVelocity() throws UsbException
+	{
+		return TicVar.CURRENT_VELOCITY.get(tic());
+	}
+	
+	/**
+	 * @return the interface to the TIC, opened if this is the first use
+	 */
+	private TicInterface tic()
+	{
+		TicInterface opened = tic;
+		if (opened == null)
+		{
+			opened = new TicInterface();
+			tic = opened;
+		}
+		return opened;
+	}
+}
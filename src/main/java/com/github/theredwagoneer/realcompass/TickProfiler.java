@@ -0,0 +1,171 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times what the mod does on the game thread.
+ *
+ * Each event handler, and each key's work inside the client tick, gets
+ * its own histogram.  The two halves of the client tick are added up into
+ * the cost of the whole tick, and ticks that cost more than a frame are
+ * counted.  This is how we show the mod doesn't slow down the game.
+ *
+ * Timing is a System.nanoTime() on each side and a histogram record, so
+ * it is left on all the time.
+ *
+ * @author theredwagoneer
+ *
+ */
+class TickProfiler {
+	/** What is timed */
+	enum Section
+	{
+		TICK_START("Tick start", true),
+		TICK_END("Tick end", true),
+		HOME("Home key", false),
+		FUNCTION("Mode key", false),
+		SELECT("Select key", false),
+		PERIOD("Period key", false),
+		SAVE("Save key", false),
+		ENTITY("Entity tracker", false),
+		BLOCKS("Block tracker", false),
+		PLAYER_LOAD("Player load", false),
+		LOGGED_OUT("Log out", false),
+		OVERLAY("Debug overlay", false);
+
+		/** Name to show in reports */
+		private final String label;
+
+		/** Is it part of the client tick's cost?  Keys are already inside
+		 * the tick start. */
+		private final boolean inTick;
+
+		Section(String label, boolean inTick)
+		{
+			this.label = label;
+			this.inTick = inTick;
+		}
+	}
+
+	/** Time of one frame at 60 fps in ns */
+	private static final long FRAME_NS = TimeUnit.SECONDS.toNanos(1) / 60;
+
+	/** Time taken by each section */
+	private final LatencyHistogram[] sections = new LatencyHistogram[Section.values().length];
+
+	/** Time taken by each whole client tick */
+	private final LatencyHistogram ticks = new LatencyHistogram();
+
+	/** Number of client ticks that took longer than a frame */
+	private final AtomicLong slowTicks = new AtomicLong();
+
+	/** Cost of the client tick so far, in ns */
+	private long tickNanos = 0;
+
+	/**
+	 * Constructor
+	 */
+	TickProfiler()
+	{
+		for (int i = 0; i < sections.length; i++)
+		{
+			sections[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * @return time to pass to end(), in ns
+	 */
+	long begin()
+	{
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record a section that started at the given time
+	 * @param section - What was timed
+	 * @param beginNanos - Time from begin()
+	 */
+	void end(Section section, long beginNanos)
+	{
+		long nanos = System.nanoTime() - beginNanos;
+		sections[section.ordinal()].record(nanos);
+		if (section.inTick)
+		{
+			tickNanos += nanos;
+		}
+	}
+
+	/**
+	 * The client tick is done.  Record what it cost all together.
+	 */
+	void endTick()
+	{
+		ticks.record(tickNanos);
+		if (tickNanos > FRAME_NS)
+		{
+			slowTicks.incrementAndGet();
+		}
+		tickNanos = 0;
+	}
+
+	/**
+	 * Short report, one line per item, for the debug overlay.  Sections
+	 * that never ran are left out.
+	 * @return lines of text
+	 */
+	List<String> summary()
+	{
+		List<String> lines = new ArrayList<String>();
+		lines.add(String.format("Compass game thread: %d ticks over a frame", slowTicks.get()));
+		lines.add(line("Client tick", ticks));
+		for (Section section : Section.values())
+		{
+			LatencyHistogram h = sections[section.ordinal()];
+			if (h.getCount() > 0)
+			{
+				lines.add(line(section.label, h));
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Write the report to a file
+	 * @param file - File to write
+	 */
+	void dump(File file)
+	{
+		try (Writer out = new FileWriter(file))
+		{
+			for (String line : summary())
+			{
+				out.write(line);
+				out.write(System.lineSeparator());
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Format one histogram.  Game thread work is short, so this is in us.
+	 * @param label - What was timed
+	 * @param h - Its histogram
+	 * @return line of text
+	 */
+	private static String line(String label, LatencyHistogram h)
+	{
+		return String.format("%s: n=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus", label, h.getCount(),
+				h.getMean() / 1e3, h.getPercentile(0.5) / 1e3, h.getPercentile(0.99) / 1e3, h.getMax() / 1e3);
+	}
+}
@@ -0,0 +1,194 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads back a trace written by TraceRecorder, one record at a time.
+ *
+ * @author theredwagoneer
+ *
+ */
+class TraceReader implements Closeable {
+	/** Open trace */
+	private final DataInputStream in;
+
+	/** Number of compasses attached when it was recorded */
+	private final int compassCount;
+
+	/** Update period when it was recorded, in ms */
+	private final int periodMs;
+
+	/** Was velocity tracking on when it was recorded? */
+	private final boolean velocityTracking;
+
+	/** Type of the last record read */
+	private int type;
+
+	/** Key of the last key record */
+	private TraceRecorder.Key key;
+
+	/** Message of the last key record */
+	private String message;
+
+	/** Yaw of the last tick record */
+	private float yaw;
+
+	/** X of the last tick record */
+	private double x;
+
+	/** Z of the last tick record */
+	private double z;
+
+	/**
+	 * Constructor.  Opens the trace and reads the header.
+	 * @param file - Trace to read
+	 * @throws IOException if it can't be read or isn't a trace
+	 */
+	TraceReader(File file) throws IOException
+	{
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			if (in.readInt() != TraceRecorder.MAGIC)
+			{
+				throw new IOException(file + " is not a compass trace");
+			}
+			int version = in.readShort();
+			if (version != TraceRecorder.VERSION)
+			{
+				throw new IOException(file + " is trace version " + version);
+			}
+			compassCount = in.readByte();
+			periodMs = in.readShort();
+			velocityTracking = in.readBoolean();
+		}
+		catch (IOException e)
+		{
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Read the next record
+	 * @return false at the end of the trace
+	 * @throws IOException if it can't be read
+	 */
+	boolean next() throws IOException
+	{
+		int read = in.read();
+		if (read < 0)
+		{
+			return false;
+		}
+		type = read;
+		try
+		{
+			if (type == TraceRecorder.TICK)
+			{
+				yaw = in.readFloat();
+				x = in.readDouble();
+				z = in.readDouble();
+			}
+			else if (type == TraceRecorder.KEY)
+			{
+				key = TraceRecorder.Key.values()[in.readByte()];
+				message = in.readUTF();
+			}
+			else
+			{
+				throw new IOException("Unknown trace record " + type);
+			}
+		}
+		catch (EOFException e)
+		{
+			// Game closed while the last record was only partly written
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the last record was a tick
+	 */
+	boolean isTick()
+	{
+		return type == TraceRecorder.TICK;
+	}
+
+	/**
+	 * @return key of the last key record
+	 */
+	TraceRecorder.Key getKey()
+	{
+		return key;
+	}
+
+	/**
+	 * @return chat message of the last key record
+	 */
+	String getMessage()
+	{
+		return message;
+	}
+
+	/**
+	 * @return yaw of the last tick record
+	 */
+	float getYaw()
+	{
+		return yaw;
+	}
+
+	/**
+	 * @return x of the last tick record
+	 */
+	double getX()
+	{
+		return x;
+	}
+
+	/**
+	 * @return z of the last tick record
+	 */
+	double getZ()
+	{
+		return z;
+	}
+
+	/**
+	 * @return number of compasses attached when it was recorded
+	 */
+	int getCompassCount()
+	{
+		return compassCount;
+	}
+
+	/**
+	 * @return update period when it was recorded, in ms
+	 */
+	int getPeriodMs()
+	{
+		return periodMs;
+	}
+
+	/**
+	 * @return true if velocity tracking was on when it was recorded
+	 */
+	boolean isVelocityTracking()
+	{
+		return velocityTracking;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		in.close();
+	}
+}
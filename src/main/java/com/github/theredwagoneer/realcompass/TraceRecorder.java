@@ -0,0 +1,144 @@
+package com.github.theredwagoneer.realcompass;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Records what the player did each client tick, so the needle's behavior
+ * can be played back later without the player at the rig.
+ *
+ * The trace is a header followed by records, each starting with a type
+ * byte.  A tick record is the yaw and position, 21 bytes.  A key record
+ * is the key pressed and the message it put in the chat, so the replay
+ * can check it ended up in the same mode.  Keys are written before the
+ * tick they happened in, the same order the compass sees them.
+ *
+ * Writes go to a buffer, so a tick costs a few stores.  If the file can't
+ * be written, recording just stops.  Only used from the game thread.
+ *
+ * @author theredwagoneer
+ *
+ */
+class TraceRecorder {
+	/** Marks the file as a compass trace */
+	static final int MAGIC = 0x52435452;
+
+	/** Format version */
+	static final int VERSION = 1;
+
+	/** Record type for a client tick */
+	static final int TICK = 0;
+
+	/** Record type for a key press */
+	static final int KEY = 1;
+
+	/** Keys that are recorded */
+	enum Key { HOME, FUNCTION, SELECT, SAVE, PERIOD };
+
+	/** Size of the write buffer */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** Open trace, or null once recording stopped */
+	private DataOutputStream out;
+
+	/**
+	 * Constructor.  Starts a new trace file.
+	 *
+	 * The header holds what the replay needs to set up the same way: the
+	 * number of compasses, the update period and whether velocity tracking
+	 * was on.
+	 * @param file - File to write
+	 * @param compassCount - Number of compasses attached
+	 * @param periodMs - Update period in ms
+	 */
+	TraceRecorder(File file, int compassCount, int periodMs)
+	{
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeByte(compassCount);
+			out.writeShort(periodMs);
+			out.writeBoolean(CompassConst.VELOCITY_TRACKING);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Record a key press
+	 * @param key - Key pressed
+	 * @param message - Message it put in the chat
+	 */
+	void key(Key key, String message)
+	{
+		if (out == null)
+		{
+			return;
+		}
+		try
+		{
+			out.writeByte(KEY);
+			out.writeByte(key.ordinal());
+			out.writeUTF(message);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Record the end of a client tick
+	 * @param yaw - Player yaw
+	 * @param x - Player x
+	 * @param z - Player z
+	 */
+	void tick(float yaw, double x, double z)
+	{
+		if (out == null)
+		{
+			return;
+		}
+		try
+		{
+			out.writeByte(TICK);
+			out.writeFloat(yaw);
+			out.writeDouble(x);
+			out.writeDouble(z);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Write out what is buffered and stop recording
+	 */
+	void close()
+	{
+		if (out == null)
+		{
+			return;
+		}
+		try
+		{
+			out.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		out = null;
+	}
+}
@@ -0,0 +1,106 @@
+package com.github.theredwagoneer.realcompass;
+
+/**
+ * Keeps a compass's updates on a fixed rate grid.
+ *
+ * While the compass stays busy, each update is due one period after the
+ * last one was due, not one period after it ran, so USB time doesn't make
+ * the rate drift.  Slots that were missed because an update ran long are
+ * skipped rather than run back to back to catch up.  When the compass
+ * goes idle, the grid starts over from the next update.
+ *
+ * Only used from the scheduler thread.
+ *
+ * @author theredwagoneer
+ *
+ */
+class UpdateSlots {
+	/** When the next update is due, in ns */
+	private long deadline;
+
+	/** When the last update started, in ns */
+	private long lastStart = 0;
+
+	/** Did the compass still have something to do after the last update? */
+	private boolean busy = false;
+
+	/**
+	 * Constructor
+	 * @param now - Time now in ns.  The first update is due straight away.
+	 */
+	UpdateSlots(long now)
+	{
+		deadline = now;
+	}
+
+	/**
+	 * @return when the next update is due, in ns
+	 */
+	long getDeadline()
+	{
+		return deadline;
+	}
+
+	/**
+	 * An update is starting.  Records how late it is and how far the gap
+	 * from the last one is off the period.
+	 * @param now - Time the update started in ns
+	 * @param period - Update period in ns
+	 * @param metrics - Where to record it
+	 */
+	void start(long now, long period, CompassMetrics metrics)
+	{
+		long late = now - deadline;
+		if (!busy)
+		{
+			// Coming back from idle.  Start the grid here.
+			deadline = now;
+		}
+		else
+		{
+			metrics.recordLateness(late);
+			metrics.recordJitter(Math.abs(now - lastStart - period));
+			if (late >= period)
+			{
+				// Held up by another compass for whole slots
+				long missed = late / period;
+				metrics.skippedSlots(missed);
+				deadline += missed * period;
+			}
+		}
+		lastStart = now;
+	}
+
+	/**
+	 * The update is done.  Move to the next slot that hasn't passed yet.
+	 * @param now - Time the update finished in ns
+	 * @param period - Update period in ns
+	 * @param stillBusy - Does the compass have more to do?
+	 * @param metrics - Where to record skipped slots
+	 */
+	void finish(long now, long period, boolean stillBusy, CompassMetrics metrics)
+	{
+		deadline += period;
+		if (now - deadline >= 0)
+		{
+			long missed = (now - deadline) / period + 1;
+			metrics.skippedSlots(missed);
+			deadline += missed * period;
+		}
+		busy = stillBusy;
+	}
+
+	/**
+	 * Put the next update off until at least this time, such as while
+	 * waiting to reconnect.  The grid starts over from there.
+	 * @param time - Earliest time in ns
+	 */
+	void delayUntil(long time)
+	{
+		if (time - deadline > 0)
+		{
+			deadline = time;
+			busy = false;
+		}
+	}
+}